@@ -3,6 +3,7 @@ package com.github.sachin.lootin;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 
 import com.github.sachin.lootin.commands.Commands;
@@ -19,8 +20,7 @@ import com.github.sachin.lootin.utils.cooldown.CooldownContainer;
 import com.github.sachin.lootin.loot.LootOverrideManager;
 import com.github.sachin.lootin.loot.VaultResetManager;
 
-import com.github.sachin.lootin.utils.storage.LootinContainer;
-import com.github.sachin.lootin.utils.storage.StorageConverterUtility;
+import com.github.sachin.lootin.utils.storage.*;
 import com.github.sachin.prilib.McVersion;
 import com.github.sachin.prilib.Prilib;
 import org.bukkit.*;
@@ -45,13 +45,29 @@ public final class Lootin extends JavaPlugin {
     private PaperCommandManager commandManager;
 
     private Scheduler scheduler;
-    public List<Location> currentChestviewers = new ArrayList<>();
-    public List<StorageMinecart> currentMinecartviewers = new ArrayList<>();
+    // opened and closed from region threads on Folia, a container viewed by two players is listed twice
+    public List<Location> currentChestviewers = Collections.synchronizedList(new ArrayList<>());
+    public List<StorageMinecart> currentMinecartviewers = Collections.synchronizedList(new ArrayList<>());
 
-    public Map<UUID, LootinContainer> cachedContainers = new HashMap<>();
+    public ContainerCache cachedContainers;
 
     public Task cachedRunnable;
 
+    private ContainerWriteQueue writeQueue;
+    private StorageBackend storageBackend;
+    private ContainerPrefetcher prefetcher;
+    private ProximityPrefetcher proximityPrefetcher;
+    private final ContainerIdIndex containerIndex = new ContainerIdIndex();
+    private ContainerJournal journal;
+    private OrphanSweeper orphanSweeper;
+    private RetentionPolicy retentionPolicy;
+    private LegacyMigration migration;
+    private StorageSnapshots snapshots;
+    private Task sweeperRunnable;
+    private Task snapshotRunnable;
+    private Task checkpointRunnable;
+    private Task proximityRunnable;
+
     public CooldownContainer interactCooldown;
 
     private WorldManager worldManager;
@@ -138,6 +154,10 @@ public final class Lootin extends JavaPlugin {
 //        pm.registerEvents(new StructureGenerateTempFix(),plugin);
 
         pm.registerEvents(new ChunkLoadListener(), plugin);
+        try {
+            Class.forName("org.bukkit.event.world.EntitiesLoadEvent");
+            pm.registerEvents(new EntitiesLoadListener(), plugin);
+        } catch (ClassNotFoundException ignored) {}
         pm.registerEvents(new InventoryListeners(), plugin);
         pm.registerEvents(new ChestEvents(), plugin);
         pm.registerEvents(new ItemFrameListener(),plugin);
@@ -162,26 +182,78 @@ public final class Lootin extends JavaPlugin {
             new Metrics(this, 11877);
         }
 
-        cachedRunnable = scheduler.runTaskTimer(this,() -> {
-            if(!cachedContainers.isEmpty()){
-
-                int i =0;
-                Iterator<Map.Entry<UUID, LootinContainer>> iterator = cachedContainers.entrySet().iterator();
-                while (iterator.hasNext()){
-                    Map.Entry<UUID, LootinContainer> entry = iterator.next();
-                    LootinContainer container = entry.getValue();
-                    if(container.getClosingTimer()<=0){
-                        StorageConverterUtility.save(container);
-                        iterator.remove();
-                        i++;
-                        continue;
-                    }
-                    container.setClosingTimer(container.getClosingTimer()-(10*20));
-                }
-
-                if(i!=0){
-                    plugin.debug(i+" cached containers cleared and stored in data folder");
+        cachedContainers = new ContainerCache(getConfig().getLong(LConstants.CACHE_MAX_WEIGHT,200000),getConfig().getLong(LConstants.KEEP_IN_MEMORY,6000),container -> {
+            StorageConverterUtility.applyRetention(container);
+            StorageConverterUtility.saveAsync(container);
+        });
+        storageBackend = createStorageBackend();
+        File journalFolder = new File(StorageConverterUtility.getDataFile(),"journal");
+        if(isRunningPaper){
+            try {
+                int restored = ContainerJournal.replay(journalFolder,storageBackend);
+                if(restored > 0){
+                    getLogger().info("Restored "+restored+" containers from the journal");
                 }
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE,"Could not replay the container journal, it is kept for the next start",e);
+            }
+        }
+        File snapshotFolder = new File(StorageConverterUtility.getDataFile(),"snapshots");
+        try {
+            long restored = StorageSnapshots.restoreScheduled(this,snapshotFolder,storageBackend);
+            if(restored >= 0){
+                getLogger().info("Restored "+restored+" containers from a storage snapshot");
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE,"Could not restore the storage snapshot",e);
+        }
+        scheduler.runTaskAsynchronously(this,this::buildContainerIndex);
+        writeQueue = new ContainerWriteQueue(this,getConfig().getInt(LConstants.WRITE_QUEUE_SIZE,1024));
+        if(isRunningPaper && getConfig().getBoolean(LConstants.JOURNAL,true)){
+            try {
+                journal = new ContainerJournal(this,journalFolder,getConfig().getLong(LConstants.JOURNAL_SYNC_INTERVAL,1000));
+                long checkpointInterval = Math.max(20,getConfig().getLong(LConstants.JOURNAL_CHECKPOINT_INTERVAL,6000));
+                checkpointRunnable = scheduler.runTaskTimer(this,() -> journal.checkpoint(),checkpointInterval,checkpointInterval);
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE,"Could not open the container journal, changes are only saved when containers leave the cache",e);
+            }
+        }
+        if(getConfig().getBoolean(LConstants.ORPHAN_GC,true)){
+            orphanSweeper = new OrphanSweeper(this,new File(StorageConverterUtility.getDataFile(),"tombstones.txt"),getConfig().getInt(LConstants.ORPHAN_GC_BATCH_SIZE,64));
+            long sweepInterval = Math.max(20,getConfig().getLong(LConstants.ORPHAN_GC_INTERVAL,200));
+            sweeperRunnable = scheduler.runTaskTimer(this,() -> orphanSweeper.sweep(),sweepInterval,sweepInterval);
+        }
+        if(getConfig().getBoolean(LConstants.PLAYER_RETENTION,false)){
+            RetentionPolicy.Basis basis = RetentionPolicy.Basis.LAST_LOOT;
+            try {
+                basis = RetentionPolicy.Basis.valueOf(getConfig().getString(LConstants.PLAYER_RETENTION_BASED_ON,"LAST_LOOT").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                getLogger().warning("Unknown player-retention.based-on "+getConfig().getString(LConstants.PLAYER_RETENTION_BASED_ON)+", using LAST_LOOT");
+            }
+            retentionPolicy = new RetentionPolicy(getConfig().getInt(LConstants.PLAYER_RETENTION_MAX_AGE,90),basis);
+            pm.registerEvents(new PlayerSessionListener(),plugin);
+        }
+        if(getConfig().getBoolean(LConstants.SNAPSHOTS,false)){
+            snapshots = new StorageSnapshots(this,snapshotFolder,getConfig().getInt(LConstants.SNAPSHOTS_FULL_EVERY,24),getConfig().getInt(LConstants.SNAPSHOTS_KEEP_FULL,2));
+            long snapshotInterval = Math.max(1,getConfig().getLong(LConstants.SNAPSHOTS_INTERVAL,60))*60*20;
+            snapshotRunnable = scheduler.runTaskTimer(this,() -> scheduler.runTaskAsynchronously(this,() -> snapshots.create(false,message -> getLogger().info(message))),snapshotInterval,snapshotInterval);
+        }
+        if(getConfig().getBoolean(LConstants.PREFETCH_CONTAINERS,true)){
+            prefetcher = new ContainerPrefetcher(this,256);
+            if(getConfig().getBoolean(LConstants.PREFETCH_NEARBY,true)){
+                proximityPrefetcher = new ProximityPrefetcher(this,prefetcher,getConfig().getDouble(LConstants.PREFETCH_NEARBY_RADIUS,8),getConfig().getInt(LConstants.PREFETCH_NEARBY_MAX_CONTAINERS,4));
+                long proximityInterval = Math.max(1,getConfig().getLong(LConstants.PREFETCH_NEARBY_INTERVAL,10));
+                proximityRunnable = scheduler.runTaskTimer(this,() -> proximityPrefetcher.tick(),proximityInterval,proximityInterval);
+            }
+        }
+        if(getConfig().getBoolean(LConstants.CACHE_WARMUP,true)){
+            scheduler.runTaskAsynchronously(this,() -> CacheWarmup.warm(this,getHotSetFile(),getConfig().getInt(LConstants.CACHE_WARMUP_MAX_CONTAINERS,2000),getConfig().getLong(LConstants.CACHE_WARMUP_MAX_WEIGHT,50000)));
+        }
+        migration = LegacyMigration.resume(this,getConfig().getInt(LConstants.MIGRATION_CHUNKS_PER_TICK,2));
+        cachedRunnable = scheduler.runTaskTimer(this,() -> {
+            int i = cachedContainers.expire(10*20);
+            if(i!=0){
+                plugin.debug(i+" cached containers cleared and stored in data folder");
             }
         },1,10*20);
     }
@@ -197,10 +269,38 @@ public final class Lootin extends JavaPlugin {
         }
         if(cachedRunnable != null && !cachedRunnable.isCancelled()){
             cachedRunnable.cancel();
+            if(migration != null){
+                migration.stop();
+            }
+            if(proximityPrefetcher != null){
+                proximityRunnable.cancel();
+            }
+            if(prefetcher != null){
+                prefetcher.shutdown();
+            }
+            if(orphanSweeper != null){
+                sweeperRunnable.cancel();
+                orphanSweeper.shutdown();
+            }
+            if(snapshots != null){
+                snapshotRunnable.cancel();
+            }
+            if(getConfig().getBoolean(LConstants.CACHE_WARMUP,true)){
+                CacheWarmup.saveHotSet(this,getHotSetFile(),cachedContainers,getConfig().getInt(LConstants.CACHE_WARMUP_MAX_CONTAINERS,2000));
+            }
             for(LootinContainer container : cachedContainers.values()){
-                StorageConverterUtility.save(container);
+                StorageConverterUtility.saveAsync(container);
             }
             cachedContainers.clear();
+            writeQueue.shutdown();
+            if(snapshots != null){
+                snapshots.shutdown();
+            }
+            if(journal != null){
+                checkpointRunnable.cancel();
+                journal.shutdown(writeQueue.getQueuedCount() == 0);
+            }
+            storageBackend.close();
         }
         // Clear reflections
 //        VersionProvider.PROVIDER.deleteAll();
@@ -314,6 +414,10 @@ public final class Lootin extends JavaPlugin {
         return 27;
     }
 
+    private File getHotSetFile(){
+        return new File(StorageConverterUtility.getDataFile(),"hotset.txt");
+    }
+
     public void reloadConfigs(){
         saveDefaultConfig();
         try {
@@ -322,6 +426,9 @@ public final class Lootin extends JavaPlugin {
             e.printStackTrace();
         }
         reloadConfig();
+        if(cachedContainers != null){
+            cachedContainers.setExpireAfter(getConfig().getLong(LConstants.KEEP_IN_MEMORY,6000));
+        }
         getWorldManager().saveAndReloadWorldConfigFile();
         if(lootOverrideManager != null) {
             lootOverrideManager.reload();
@@ -369,4 +476,105 @@ public final class Lootin extends JavaPlugin {
         return vaultResetManager;
     }
 
+    public ContainerWriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * @return the chunk load prefetcher or null if prefetching is disabled
+     */
+    public ContainerPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * @return the prefetcher for containers ahead of players or null if it is disabled
+     */
+    public ProximityPrefetcher getProximityPrefetcher() {
+        return proximityPrefetcher;
+    }
+
+    public StorageBackend getStorageBackend() {
+        return storageBackend;
+    }
+
+    /**
+     * @return the orphaned container sweeper or null if it is disabled
+     */
+    public OrphanSweeper getOrphanSweeper() {
+        return orphanSweeper;
+    }
+
+    /**
+     * @return the last started migration of legacy containers, null if there was none since the server started
+     */
+    public LegacyMigration getMigration() {
+        return migration;
+    }
+
+    public void setMigration(LegacyMigration migration) {
+        this.migration = migration;
+    }
+
+    /**
+     * @return the incremental storage snapshots, null if they are disabled
+     */
+    public StorageSnapshots getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return the player data retention policy or null if player data is kept forever
+     */
+    public RetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    /**
+     * @return the container journal or null if journaling is disabled
+     */
+    public ContainerJournal getJournal() {
+        return journal;
+    }
+
+    public ContainerIdIndex getContainerIndex() {
+        return containerIndex;
+    }
+
+    private void buildContainerIndex(){
+        long start = System.currentTimeMillis();
+        try {
+            storageBackend.forEachContainerID(containerIndex::add);
+            containerIndex.setReady();
+            debug("Indexed "+containerIndex.size()+" stored containers in "+(System.currentTimeMillis()-start)+"ms");
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE,"Could not index stored containers, every lookup will check the storage",e);
+        }
+    }
+
+    private StorageBackend createStorageBackend(){
+        File dataFolder = StorageConverterUtility.getDataFile();
+        String type = getConfig().getString(LConstants.STORAGE_TYPE,"FILE");
+        if(type.equalsIgnoreCase("SQLITE")){
+            if(!isRunningPaper){
+                getLogger().warning("SQLITE storage requires PaperMC, falling back to FILE storage");
+            }
+            else{
+                try {
+                    getLogger().info("Using SQLITE storage");
+                    return new SqliteStorageBackend(new File(dataFolder,"lootin.db"));
+                } catch (IOException e) {
+                    getLogger().log(Level.SEVERE,"Could not open SQLITE storage, falling back to FILE storage",e);
+                }
+            }
+        }
+        RecordCompressor.Mode compression = RecordCompressor.Mode.DICTIONARY;
+        try {
+            compression = RecordCompressor.Mode.valueOf(getConfig().getString(LConstants.STORAGE_COMPRESSION,"DICTIONARY").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            getLogger().warning("Unknown storage-compression "+getConfig().getString(LConstants.STORAGE_COMPRESSION)+", using DICTIONARY");
+        }
+        return new FileStorageBackend(dataFolder,isRunningPaper,new RecordCompressor(new File(dataFolder,"dictionaries"),compression));
+    }
+
 }
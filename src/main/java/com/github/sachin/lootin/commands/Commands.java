@@ -6,9 +6,7 @@ import com.github.sachin.lootin.loot.LootOverrideManager;
 import com.github.sachin.lootin.loot.VaultResetManager;
 import com.github.sachin.lootin.utils.*;
 
-import com.github.sachin.lootin.utils.storage.LootinContainer;
-import com.github.sachin.lootin.utils.storage.PlayerLootData;
-import com.github.sachin.lootin.utils.storage.StorageConverterUtility;
+import com.github.sachin.lootin.utils.storage.*;
 import com.jeff_media.morepersistentdatatypes.DataType;
 
 import org.bukkit.*;
@@ -32,6 +30,9 @@ import co.aikar.commands.annotation.CommandAlias;
 import co.aikar.commands.annotation.CommandCompletion;
 import co.aikar.commands.annotation.Subcommand;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.*;
 
 @CommandAlias("lootin")
@@ -143,6 +144,8 @@ public class Commands extends BaseCommand{
                 if(!lootinContainer.getPlayerDataMap().isEmpty()){
                     plugin.sendPlayerMessage("&aCleared data of &e"+lootinContainer.getPlayerDataMap() .size()+"&a players from the container",player);
                     lootinContainer.getPlayerDataMap().clear();
+                    lootinContainer.markDirty();
+                    StorageConverterUtility.journal(lootinContainer);
                     plugin.cachedContainers.put(lootinContainer.getContainerID(),lootinContainer);
                 }
                 else{
@@ -155,6 +158,8 @@ public class Commands extends BaseCommand{
                     Map.Entry<UUID, PlayerLootData> entry = iterator.next();
                     if(args[1].equals(Bukkit.getOfflinePlayer(entry.getKey()).getName())){
                         iterator.remove();
+                        lootinContainer.markDirty();
+                        StorageConverterUtility.journal(lootinContainer);
                         plugin.sendPlayerMessage("&aCleared data of &e"+args[1]+"&a from the container.",player);
                         plugin.cachedContainers.put(lootinContainer.getContainerID(),lootinContainer);
                         return;
@@ -185,6 +190,306 @@ public class Commands extends BaseCommand{
         }
     }
 
+    @Subcommand("stats")
+    public void onStatsCommand(CommandSender sender){
+        if(!sender.hasPermission("lootin.command.stats")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Storage stats:");
+        ContainerCache cache = plugin.cachedContainers;
+        sender.sendMessage("  "+ChatColor.GRAY+"Cached containers: "+ChatColor.AQUA+cache.size()+ChatColor.GRAY+" (weight "+ChatColor.AQUA+cache.getWeight()+ChatColor.GRAY+" of "+ChatColor.AQUA+cache.getMaxWeight()+ChatColor.GRAY+")");
+        sender.sendMessage("  "+ChatColor.GRAY+"Cache hit ratio: "+ChatColor.AQUA+String.format("%.1f%%",cache.getHitRatio()*100)+ChatColor.GRAY+" ("+ChatColor.AQUA+cache.getHitCount()+ChatColor.GRAY+" hits, "+ChatColor.AQUA+cache.getMissCount()+ChatColor.GRAY+" misses, "+ChatColor.AQUA+cache.getEvictionCount()+ChatColor.GRAY+" evicted for size, "+ChatColor.AQUA+cache.getExpirationCount()+ChatColor.GRAY+" expired)");
+        sender.sendMessage("  "+ChatColor.GRAY+"Queued writes: "+ChatColor.AQUA+plugin.getWriteQueue().getQueuedCount());
+        sender.sendMessage("  "+ChatColor.GRAY+"Loads: "+ChatColor.AQUA+StorageStats.getLoads()+ChatColor.GRAY+" (prefetched: "+ChatColor.AQUA+StorageStats.getPrefetches()+ChatColor.GRAY+")");
+        if(plugin.getProximityPrefetcher() != null){
+            sender.sendMessage("  "+ChatColor.GRAY+"Containers watched for nearby prefetch: "+ChatColor.AQUA+plugin.getProximityPrefetcher().getIndexedCount());
+        }
+        sender.sendMessage("  "+ChatColor.GRAY+"Indexed containers: "+ChatColor.AQUA+(plugin.getContainerIndex().isReady() ? String.valueOf(plugin.getContainerIndex().size()) : "building..."));
+        sender.sendMessage("  "+ChatColor.GRAY+"Misses answered by index: "+ChatColor.AQUA+StorageStats.getIndexMisses());
+        sender.sendMessage("  "+ChatColor.GRAY+"Loads shared with a running read: "+ChatColor.AQUA+StorageStats.getCoalescedLoads());
+        sender.sendMessage("  "+ChatColor.GRAY+"Writes: "+ChatColor.AQUA+StorageStats.getWrites());
+        sender.sendMessage("  "+ChatColor.GRAY+"Skipped writes (unchanged): "+ChatColor.AQUA+StorageStats.getSkippedWrites());
+        if(plugin.getRetentionPolicy() != null){
+            sender.sendMessage("  "+ChatColor.GRAY+"Expired player records removed: "+ChatColor.AQUA+StorageStats.getExpiredPlayers());
+        }
+        if(plugin.getOrphanSweeper() != null){
+            OrphanSweeper sweeper = plugin.getOrphanSweeper();
+            sender.sendMessage("  "+ChatColor.GRAY+"Orphans deleted: "+ChatColor.AQUA+sweeper.getDeletedCount()+ChatColor.GRAY+" ("+ChatColor.AQUA+(sweeper.getReclaimedBytes()/1024)+" KB"+ChatColor.GRAY+" reclaimed, "+ChatColor.AQUA+sweeper.getQueuedCount()+ChatColor.GRAY+" queued)");
+        }
+    }
+
+    @Subcommand("migrate")
+    @CommandCompletion("@worlds|stop|status")
+    public void onMigrateCommand(CommandSender sender, String[] args){
+        if(!sender.hasPermission("lootin.command.migrate")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        LegacyMigration migration = plugin.getMigration();
+        if(args.length < 1 || args[0].equalsIgnoreCase("status")){
+            if(migration == null){
+                sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"No migration was started, use /lootin migrate <world>");
+                return;
+            }
+            String total = migration.getTotalChunks() >= 0 ? String.valueOf(migration.getTotalChunks()) : "?";
+            sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"Migration of "+ChatColor.AQUA+migration.getWorld().getName()+ChatColor.GRAY+(migration.isRunning() ? " running: " : " stopped: ")
+                    +ChatColor.AQUA+migration.getCheckedChunks()+"/"+total+ChatColor.GRAY+" chunks, "+ChatColor.AQUA+migration.getMigratedContainers()+ChatColor.GRAY+" containers converted");
+            return;
+        }
+        if(args[0].equalsIgnoreCase("stop")){
+            if(migration == null || !migration.isRunning()){
+                sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"No migration is running");
+                return;
+            }
+            migration.stop();
+            sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Migration stopped, run /lootin migrate "+migration.getWorld().getName()+" to continue it");
+            return;
+        }
+        World world = Bukkit.getWorld(args[0]);
+        if(world == null){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Unknown world "+args[0]);
+            return;
+        }
+        if(migration != null && migration.isRunning()){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"A migration of "+migration.getWorld().getName()+" is already running");
+            return;
+        }
+        migration = new LegacyMigration(plugin,world,plugin.getConfig().getInt(LConstants.MIGRATION_CHUNKS_PER_TICK,2),sender);
+        plugin.setMigration(migration);
+        migration.start();
+        sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Migrating legacy containers of "+world.getName()+", check progress with /lootin migrate status");
+    }
+
+    @Subcommand("export")
+    public void onExportCommand(CommandSender sender, String[] args){
+        if(!sender.hasPermission("lootin.command.storage")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        File file = getTransferFile(args.length > 0 ? args[0] : new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date())+".ndjson.gz");
+        if(file == null){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Give a plain file name, exports are written to data/exports");
+            return;
+        }
+        // write out unsaved changes first so the export sees them
+        for(LootinContainer container : plugin.cachedContainers.values()){
+            if(container.isDirty()){
+                plugin.getWriteQueue().submit(container);
+            }
+        }
+        sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"Exporting all containers to "+file.getName()+"...");
+        ContainerTransfer transfer = new ContainerTransfer(plugin,plugin.getStorageBackend());
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> plugin.getWriteQueue().runAfterQueued(() -> plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            try {
+                transfer.exportTo(file,line -> sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+line));
+            } catch (IOException e) {
+                sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Export failed: "+e.getMessage());
+                e.printStackTrace();
+            }
+        })));
+    }
+
+    @Subcommand("import")
+    @CommandCompletion("@nothing")
+    public void onImportCommand(CommandSender sender, String[] args){
+        if(!sender.hasPermission("lootin.command.storage")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        if(args.length < 1){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Usage: /lootin import <file in data/exports>");
+            return;
+        }
+        File file = getTransferFile(args[0]);
+        if(file == null || !file.isFile()){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"No file "+args[0]+" found in data/exports");
+            return;
+        }
+        sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"Importing containers from "+file.getName()+", containers that are currently in use keep their loaded state until they leave the cache...");
+        ContainerTransfer transfer = new ContainerTransfer(plugin,plugin.getStorageBackend());
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            try {
+                transfer.importFrom(file,plugin.getWriteQueue(),plugin.getContainerIndex(),line -> sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+line));
+            } catch (IOException e) {
+                sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Import failed: "+e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Subcommand("snapshot")
+    @CommandCompletion("create|full|list|restore|cancel-restore @nothing")
+    public void onSnapshotCommand(CommandSender sender, String[] args){
+        if(!sender.hasPermission("lootin.command.storage")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        StorageSnapshots snapshots = plugin.getSnapshots();
+        if(snapshots == null){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Enable snapshots in config.yml first");
+            return;
+        }
+        String action = args.length > 0 ? args[0].toLowerCase() : "list";
+        switch (action){
+            case "create":
+            case "full":
+                sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"Writing snapshot of "+(action.equals("full") ? "all" : snapshots.getChangeCount()+" changed")+" containers...");
+                plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+                    if(!snapshots.create(action.equals("full"),message -> sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+message))){
+                        sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"A snapshot is already being written");
+                    }
+                });
+                break;
+            case "restore":
+                if(args.length < 2){
+                    sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Usage: /lootin snapshot restore <name>, see /lootin snapshot list");
+                    return;
+                }
+                try {
+                    if(!snapshots.scheduleRestore(args[1])){
+                        sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"No snapshot "+args[1]+" with a full snapshot before it found");
+                        return;
+                    }
+                } catch (IOException e) {
+                    sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Could not schedule the restore: "+e.getMessage());
+                    e.printStackTrace();
+                    return;
+                }
+                sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Storage is restored to "+args[1]+" on the next start, all changes made after it are lost. Undo with /lootin snapshot cancel-restore");
+                break;
+            case "cancel-restore":
+                snapshots.cancelRestore();
+                sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"No snapshot will be restored on the next start");
+                break;
+            default:
+                List<String> names = snapshots.getSnapshotNames();
+                sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+names.size()+" snapshots, "+snapshots.getChangeCount()+" containers changed since the last one:");
+                for(String name : names){
+                    sender.sendMessage("  "+ChatColor.GRAY+name);
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return given file in data/exports, or null if the name tries to leave that folder
+     */
+    private File getTransferFile(String name){
+        if(name.contains("/") || name.contains("\\") || name.startsWith(".")) return null;
+        return new File(new File(StorageConverterUtility.getDataFile(),"exports"),name);
+    }
+
+    @Subcommand("storage train-dictionary")
+    public void onTrainDictionaryCommand(CommandSender sender){
+        if(!sender.hasPermission("lootin.command.storage")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        if(!(plugin.getStorageBackend() instanceof FileStorageBackend)){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Dictionaries are only used by FILE storage");
+            return;
+        }
+        FileStorageBackend backend = (FileStorageBackend) plugin.getStorageBackend();
+        sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"Sampling container records...");
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            try {
+                List<byte[]> samples = backend.sampleRecords(2000);
+                if(samples.size() < 10){
+                    sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Not enough stored containers to train a dictionary, found "+samples.size());
+                    return;
+                }
+                byte[] dictionary = RecordCompressor.train(samples,RecordCompressor.MAX_DICTIONARY_SIZE);
+                int id = backend.getCompressor().addDictionary(dictionary);
+                sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Trained dictionary #"+id+" ("+dictionary.length+" bytes) from "+samples.size()+" records");
+                if(backend.getCompressor().getMode() != RecordCompressor.Mode.DICTIONARY){
+                    sender.sendMessage(plugin.getPrefix()+ChatColor.YELLOW+"Set storage-compression to DICTIONARY in config.yml to use it");
+                }
+            } catch (IOException e) {
+                sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Failed to train dictionary: "+e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Subcommand("storage compact")
+    public void onStorageCompactCommand(CommandSender sender){
+        if(!sender.hasPermission("lootin.command.storage")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        RetentionPolicy policy = plugin.getRetentionPolicy();
+        if(policy == null){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Enable player-retention in config.yml first");
+            return;
+        }
+        sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"Removing expired player data from all stored containers...");
+        long start = System.currentTimeMillis();
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            try {
+                policy.compactAll(plugin.getStorageBackend(),plugin.getWriteQueue(),(containers, players) ->
+                        sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Removed "+players+" expired player records from "+containers+" containers in "+(System.currentTimeMillis()-start)+"ms"));
+            } catch (IOException e) {
+                sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Compaction failed: "+e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Subcommand("storage forget-player")
+    @CommandCompletion("@players @nothing")
+    public void onStorageForgetPlayerCommand(CommandSender sender, String[] args){
+        if(!sender.hasPermission("lootin.command.storage")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        if(args.length < 1){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Usage: /lootin storage forget-player <player>");
+            return;
+        }
+        sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"Removing the loot data of "+args[0]+" from all containers...");
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            OfflinePlayer target = Bukkit.getOfflinePlayer(args[0]);
+            try {
+                StorageConverterUtility.forgetPlayer(target.getUniqueId(),containers ->
+                        sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Removed the loot data of "+args[0]+" from "+containers+" containers"));
+            } catch (IOException e) {
+                sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Failed to look up the containers of "+args[0]+": "+e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Subcommand("storage benchmark")
+    public void onStorageBenchmarkCommand(CommandSender sender){
+        if(!sender.hasPermission("lootin.command.storage")){
+            sender.sendMessage(plugin.getMessage(LConstants.NO_PERMISSION,null));
+            return;
+        }
+        if(!(plugin.getStorageBackend() instanceof FileStorageBackend)){
+            sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Benchmarks are only available for FILE storage");
+            return;
+        }
+        FileStorageBackend backend = (FileStorageBackend) plugin.getStorageBackend();
+        sender.sendMessage(plugin.getPrefix()+ChatColor.GRAY+"Running storage benchmark...");
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            try {
+                List<byte[]> samples = backend.sampleRecords(2000);
+                sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Compression benchmark:");
+                for(String line : StorageBenchmark.compareCompression(samples,backend.getCompressor())){
+                    sender.sendMessage("  "+ChatColor.GRAY+line);
+                }
+                sender.sendMessage(plugin.getPrefix()+ChatColor.GREEN+"Read path benchmark:");
+                for(String line : StorageBenchmark.compareReadPaths(backend,2000)){
+                    sender.sendMessage("  "+ChatColor.GRAY+line);
+                }
+            } catch (IOException e) {
+                sender.sendMessage(plugin.getPrefix()+ChatColor.RED+"Benchmark failed: "+e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
     @Subcommand("test")
     @CommandCompletion("@loottables")
     public void onTestCommand(Player player,String[] args){
@@ -318,7 +623,7 @@ public class Commands extends BaseCommand{
 
         if(holder == null) return null;
         if(holder.getPersistentDataContainer().has(LConstants.STORAGE_DATA_KEY)){
-            lootinContainer = StorageConverterUtility.getContainerData(holder.getPersistentDataContainer().get(LConstants.STORAGE_DATA_KEY,DataType.UUID));
+            lootinContainer = StorageConverterUtility.getContainerData(holder);
         }
         else if(holder.getPersistentDataContainer().has(LConstants.DATA_KEY)){
             lootinContainer = StorageConverterUtility.convert(holder);
@@ -28,6 +28,11 @@ public class BukkitScheduler implements Scheduler{
         return new BukkitTask(Bukkit.getScheduler().runTaskTimer(plugin, task, delay,period));
     }
 
+    @Override
+    public void runTaskAsynchronously(Plugin plugin, Runnable task) {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin,task);
+    }
+
 
     public static class BukkitTask implements Task{
 
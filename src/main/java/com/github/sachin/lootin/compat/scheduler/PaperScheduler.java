@@ -28,6 +28,11 @@ public class PaperScheduler implements Scheduler{
         return new PaperTask(Bukkit.getGlobalRegionScheduler().runAtFixedRate(plugin,scheduledTask -> task.run(),delay,period));
     }
 
+    @Override
+    public void runTaskAsynchronously(Plugin plugin, Runnable task) {
+        Bukkit.getAsyncScheduler().runNow(plugin,scheduledTask -> task.run());
+    }
+
 
     public static class PaperTask implements Task{
 
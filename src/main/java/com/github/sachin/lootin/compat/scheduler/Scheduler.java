@@ -16,4 +16,6 @@ public interface Scheduler {
 
     Task runTaskTimer(Plugin plugin,Runnable task,long delay,long period);
 
+    void runTaskAsynchronously(Plugin plugin,Runnable task);
+
 }
@@ -77,6 +77,21 @@ public class ChestEvents extends BaseListener{
         }
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void tombstoneBrokenContainer(BlockBreakEvent e) {
+        if (plugin.getOrphanSweeper() == null) return;
+        BlockState state = e.getBlock().getState();
+        if (state instanceof Chest || state instanceof Barrel) {
+            plugin.getOrphanSweeper().tombstone((TileState) state);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void tombstoneDestroyedMinecart(VehicleDestroyEvent e) {
+        if (plugin.getOrphanSweeper() == null || !(e.getVehicle() instanceof StorageMinecart)) return;
+        plugin.getOrphanSweeper().tombstone(e.getVehicle());
+    }
+
     @EventHandler
     public void onMinecartDestroy(VehicleDestroyEvent e) {
         if (!(e.getVehicle() instanceof StorageMinecart)) return;
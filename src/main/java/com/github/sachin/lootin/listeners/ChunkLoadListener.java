@@ -4,6 +4,8 @@ import com.github.sachin.lootin.Lootin;
 import com.github.sachin.lootin.utils.ChestUtils;
 import com.github.sachin.lootin.utils.ContainerType;
 import com.github.sachin.lootin.utils.LConstants;
+import com.github.sachin.lootin.utils.storage.ContainerPrefetcher;
+import com.github.sachin.lootin.utils.storage.StoragePosition;
 
 import org.bukkit.Chunk;
 import org.bukkit.Location;
@@ -21,15 +23,48 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
 import org.bukkit.event.hanging.HangingBreakEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.loot.Lootable;
 import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.util.BlockTransformer;
 import org.bukkit.util.BoundingBox;
 
+import java.util.*;
+
 
 public class ChunkLoadListener extends BaseListener{
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onStoredChunkLoad(ChunkLoadEvent e){
+        if(e.isNewChunk() || (plugin.getPrefetcher() == null && plugin.getOrphanSweeper() == null)) return;
+        Chunk chunk = e.getChunk();
+        if(plugin.isBlackListWorld(chunk.getWorld())) return;
+        Map<UUID, StoragePosition> containers = new HashMap<>();
+        List<TileState> states = new ArrayList<>();
+        for(BlockState state : plugin.isRunningPaper ? chunk.getTileEntities(false) : chunk.getTileEntities()){
+            if(state instanceof Chest || state instanceof Barrel){
+                ContainerPrefetcher.collect((TileState) state,containers);
+                states.add((TileState) state);
+            }
+        }
+        if(plugin.getProximityPrefetcher() != null){
+            plugin.getProximityPrefetcher().index(chunk,states);
+        }
+        if(plugin.getOrphanSweeper() != null){
+            plugin.getOrphanSweeper().reconcile(chunk,new HashSet<>(containers.keySet()));
+        }
+        if(plugin.getPrefetcher() != null){
+            plugin.getPrefetcher().prefetch(chunk,containers);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent e){
+        if(plugin.getProximityPrefetcher() != null){
+            plugin.getProximityPrefetcher().unindex(e.getChunk());
+        }
+    }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onChunkLoad(ChunkLoadEvent e){
@@ -0,0 +1,31 @@
+package com.github.sachin.lootin.listeners;
+
+import com.github.sachin.lootin.utils.storage.ContainerPrefetcher;
+import com.github.sachin.lootin.utils.storage.StoragePosition;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.minecart.StorageMinecart;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.world.EntitiesLoadEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Entities load separately from their chunk, minecart containers are prefetched here
+ */
+public class EntitiesLoadListener extends BaseListener{
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void prefetchMinecarts(EntitiesLoadEvent e){
+        if(plugin.getPrefetcher() == null || plugin.isBlackListWorld(e.getWorld())) return;
+        Map<UUID, StoragePosition> containers = new HashMap<>();
+        for(Entity entity : e.getEntities()){
+            if(entity instanceof StorageMinecart){
+                ContainerPrefetcher.collect(entity,containers);
+            }
+        }
+        plugin.getPrefetcher().prefetch(e.getChunk(),containers);
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.sachin.lootin.listeners;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Tells the retention policy which players are online, only registered while one is configured
+ */
+public class PlayerSessionListener extends BaseListener{
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent e){
+        plugin.getRetentionPolicy().playerJoined(e.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent e){
+        plugin.getRetentionPolicy().playerQuit(e.getPlayer().getUniqueId());
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.sachin.lootin.loot;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Minimal reader for the binary NBT format of chunk data, without any server classes so it can be used offline.
+ * Compounds become maps, lists become lists and arrays stay primitive arrays.
+ */
+class NbtReader {
+
+    static final byte TAG_END = 0;
+    static final byte TAG_BYTE = 1;
+    static final byte TAG_SHORT = 2;
+    static final byte TAG_INT = 3;
+    static final byte TAG_LONG = 4;
+    static final byte TAG_FLOAT = 5;
+    static final byte TAG_DOUBLE = 6;
+    static final byte TAG_BYTE_ARRAY = 7;
+    static final byte TAG_STRING = 8;
+    static final byte TAG_LIST = 9;
+    static final byte TAG_COMPOUND = 10;
+    static final byte TAG_INT_ARRAY = 11;
+    static final byte TAG_LONG_ARRAY = 12;
+
+    private final DataInputStream in;
+
+    NbtReader(DataInputStream in){
+        this.in = in;
+    }
+
+    /**
+     * Reads the root compound, keeping only given keys of it. Everything else, like the block sections
+     * of a chunk, is skipped without being decoded. The same filter applies to the pre 1.18 "Level" compound.
+     */
+    Map<String,Object> readRoot(Set<String> keep) throws IOException {
+        byte type = in.readByte();
+        if(type != TAG_COMPOUND) throw new IOException("Root tag is not a compound but "+type);
+        in.readUTF();
+        return readCompound(keep);
+    }
+
+    private Map<String,Object> readCompound(Set<String> keep) throws IOException {
+        Map<String,Object> compound = new HashMap<>();
+        byte type;
+        while ((type = in.readByte()) != TAG_END){
+            String name = in.readUTF();
+            if(keep != null && !keep.contains(name)){
+                skip(type);
+                continue;
+            }
+            compound.put(name,read(type,name.equals("Level") ? keep : null));
+        }
+        return compound;
+    }
+
+    private Object read(byte type, Set<String> keep) throws IOException {
+        switch (type){
+            case TAG_BYTE: return in.readByte();
+            case TAG_SHORT: return in.readShort();
+            case TAG_INT: return in.readInt();
+            case TAG_LONG: return in.readLong();
+            case TAG_FLOAT: return in.readFloat();
+            case TAG_DOUBLE: return in.readDouble();
+            case TAG_BYTE_ARRAY: {
+                byte[] array = new byte[in.readInt()];
+                in.readFully(array);
+                return array;
+            }
+            case TAG_STRING: return in.readUTF();
+            case TAG_LIST: {
+                byte elementType = in.readByte();
+                int length = in.readInt();
+                List<Object> list = new ArrayList<>(Math.max(0,length));
+                for(int i=0;i<length;i++){
+                    list.add(read(elementType,null));
+                }
+                return list;
+            }
+            case TAG_COMPOUND: return readCompound(keep);
+            case TAG_INT_ARRAY: {
+                int[] array = new int[in.readInt()];
+                for(int i=0;i<array.length;i++) array[i] = in.readInt();
+                return array;
+            }
+            case TAG_LONG_ARRAY: {
+                long[] array = new long[in.readInt()];
+                for(int i=0;i<array.length;i++) array[i] = in.readLong();
+                return array;
+            }
+            default: throw new IOException("Unknown NBT tag type "+type);
+        }
+    }
+
+    private void skip(byte type) throws IOException {
+        switch (type){
+            case TAG_BYTE: skipBytes(1); break;
+            case TAG_SHORT: skipBytes(2); break;
+            case TAG_INT: case TAG_FLOAT: skipBytes(4); break;
+            case TAG_LONG: case TAG_DOUBLE: skipBytes(8); break;
+            case TAG_BYTE_ARRAY: skipBytes(in.readInt()); break;
+            case TAG_STRING: skipBytes(in.readUnsignedShort()); break;
+            case TAG_LIST: {
+                byte elementType = in.readByte();
+                int length = in.readInt();
+                for(int i=0;i<length;i++) skip(elementType);
+                break;
+            }
+            case TAG_COMPOUND: {
+                byte elementType;
+                while ((elementType = in.readByte()) != TAG_END){
+                    skipBytes(in.readUnsignedShort());
+                    skip(elementType);
+                }
+                break;
+            }
+            case TAG_INT_ARRAY: skipBytes(in.readInt()*4L); break;
+            case TAG_LONG_ARRAY: skipBytes(in.readInt()*8L); break;
+            default: throw new IOException("Unknown NBT tag type "+type);
+        }
+    }
+
+    private void skipBytes(long count) throws IOException {
+        while (count > 0){
+            int skipped = in.skipBytes((int) Math.min(count,Integer.MAX_VALUE));
+            if(skipped <= 0){
+                in.readByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.github.sachin.lootin.loot;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Standalone tool that finds every lootin container of a world by reading its .mca region files directly,
+ * so it can be run against a copy of the world or while the server is offline. Region files are scanned in
+ * parallel on a fork/join pool. The result is a compact index file, put into plugins/Lootin/data/scans/&lt;world&gt;.lsi
+ * to let /lootin migrate skip every chunk that has no legacy containers.
+ * <pre>
+ * index := int(magic) byte(version) utf(world) long(scanTime) varint(n) utf(loottable)*n varint(count) entry*
+ * entry := byte(type) byte(flags) zigzag(x) zigzag(y) zigzag(z) varint(loottable index + 1) [long(msb) long(lsb)]
+ * </pre>
+ * The storage id is only present if the entry has {@link #FLAG_STORAGE_ID} set.
+ */
+public class RegionScanner {
+
+    private static final int MAGIC = 0x4C545349; // "LTSI"
+    private static final byte VERSION = 1;
+
+    public static final byte TYPE_CHEST = 0;
+    public static final byte TYPE_BARREL = 1;
+    public static final byte TYPE_MINECART = 2;
+    public static final byte TYPE_OTHER = 3;
+
+    public static final byte FLAG_IDENTITY = 1;
+    public static final byte FLAG_LEGACY_LOOT = 2;
+    public static final byte FLAG_STORAGE_ID = 4;
+
+    private static final String NAMESPACE = "lootin:";
+    private static final Set<String> CHUNK_KEYS = new HashSet<>(Arrays.asList("block_entities","TileEntities","Entities","Level"));
+
+    /**
+     * Scans the region and entity files of given world folder, for nether and end worlds the DIM-1 and DIM1
+     * sub folders are used if the world folder itself has no regions
+     */
+    public static Index scanWorld(File worldFolder, int threads) throws IOException {
+        File dimensionFolder = worldFolder;
+        for(String dimension : new String[]{"DIM-1","DIM1"}){
+            if(!new File(worldFolder,"region").isDirectory() && new File(worldFolder,dimension+"/region").isDirectory()){
+                dimensionFolder = new File(worldFolder,dimension);
+            }
+        }
+        List<File> files = new ArrayList<>();
+        for(String folder : new String[]{"region","entities"}){
+            File[] regionFiles = new File(dimensionFolder,folder).listFiles((dir, name) -> name.startsWith("r.") && name.endsWith(".mca"));
+            if(regionFiles != null){
+                files.addAll(Arrays.asList(regionFiles));
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1,threads));
+        try {
+            List<Entry> entries = pool.submit(() -> files.parallelStream()
+                    .flatMap(file -> scanQuietly(file).stream())
+                    .collect(Collectors.toList())).get();
+            return new Index(worldFolder.getName(),System.currentTimeMillis(),entries);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Scan was interrupted",e);
+        } catch (ExecutionException e) {
+            throw new IOException("Scan failed",e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<Entry> scanQuietly(File regionFile){
+        try {
+            return scanRegionFile(regionFile);
+        } catch (IOException e) {
+            System.err.println("Could not scan "+regionFile+": "+e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return the lootin containers stored in given region file, block entities and entities alike
+     */
+    public static List<Entry> scanRegionFile(File regionFile) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String[] name = regionFile.getName().split("\\.");
+        if(name.length != 4 || regionFile.length() < 8192) return entries;
+        int regionX = Integer.parseInt(name[1]);
+        int regionZ = Integer.parseInt(name[2]);
+        try (RandomAccessFile raf = new RandomAccessFile(regionFile,"r")) {
+            int[] locations = new int[1024];
+            for(int i=0;i<1024;i++){
+                locations[i] = raf.readInt();
+            }
+            for(int i=0;i<1024;i++){
+                if(locations[i] == 0) continue;
+                int chunkX = (regionX << 5)+(i & 31);
+                int chunkZ = (regionZ << 5)+(i >> 5);
+                try (DataInputStream chunk = openChunk(raf,regionFile,locations[i] >>> 8,chunkX,chunkZ)) {
+                    if(chunk != null){
+                        collect(new NbtReader(chunk).readRoot(CHUNK_KEYS),entries);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Skipping chunk "+chunkX+","+chunkZ+" of "+regionFile.getName()+": "+e.getMessage());
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static DataInputStream openChunk(RandomAccessFile raf, File regionFile, int sector, int chunkX, int chunkZ) throws IOException {
+        raf.seek((long) sector*4096);
+        int length = raf.readInt();
+        byte compression = raf.readByte();
+        InputStream data;
+        if((compression & 0x80) != 0){
+            // chunks too big for the region file are stored next to it
+            data = new FileInputStream(new File(regionFile.getParentFile(),"c."+chunkX+"."+chunkZ+".mcc"));
+        }
+        else{
+            if(length <= 1) return null;
+            byte[] payload = new byte[length-1];
+            raf.readFully(payload);
+            data = new ByteArrayInputStream(payload);
+        }
+        switch (compression & 0x7F){
+            case 1: return new DataInputStream(new BufferedInputStream(new GZIPInputStream(data)));
+            case 2: return new DataInputStream(new BufferedInputStream(new InflaterInputStream(data)));
+            case 3: return new DataInputStream(new BufferedInputStream(data));
+            default:
+                data.close();
+                throw new IOException("unsupported compression "+(compression & 0x7F));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collect(Map<String,Object> chunk, List<Entry> entries){
+        Object level = chunk.get("Level");
+        if(level instanceof Map){
+            collect((Map<String,Object>) level,entries);
+        }
+        for(String key : new String[]{"block_entities","TileEntities","Entities"}){
+            Object list = chunk.get(key);
+            if(!(list instanceof List)) continue;
+            for(Object element : (List<Object>) list){
+                if(element instanceof Map){
+                    Entry entry = toEntry((Map<String,Object>) element);
+                    if(entry != null) entries.add(entry);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Entry toEntry(Map<String,Object> holder){
+        Object values = holder.get("PublicBukkitValues");
+        if(!(values instanceof Map)) return null;
+        byte flags = 0;
+        String loottable = null;
+        UUID storageID = null;
+        for(Map.Entry<String,Object> value : ((Map<String,Object>) values).entrySet()){
+            if(!value.getKey().startsWith(NAMESPACE)) continue;
+            String key = value.getKey().substring(NAMESPACE.length());
+            if(key.equals("lootin")){
+                flags |= FLAG_IDENTITY;
+            }
+            else if(key.equals("lotttable") && value.getValue() instanceof String){
+                loottable = (String) value.getValue();
+            }
+            else if(key.equals("file-storage-key") && value.getValue() instanceof byte[] && ((byte[]) value.getValue()).length == 16){
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream((byte[]) value.getValue()));
+                try {
+                    storageID = new UUID(in.readLong(),in.readLong());
+                    flags |= FLAG_STORAGE_ID;
+                } catch (IOException ignored) {}
+            }
+            else if(isUUID(key) || (key.equals("loot-container") && value.getValue() instanceof String)){
+                flags |= FLAG_LEGACY_LOOT;
+            }
+        }
+        if(flags == 0 && loottable == null) return null;
+        String id = String.valueOf(holder.get("id"));
+        byte type = id.contains("chest_minecart") ? TYPE_MINECART : id.contains("barrel") ? TYPE_BARREL : id.contains("chest") ? TYPE_CHEST : TYPE_OTHER;
+        int x, y, z;
+        Object pos = holder.get("Pos");
+        if(pos instanceof List && ((List<Object>) pos).size() == 3){
+            List<Object> coordinates = (List<Object>) pos;
+            x = (int) Math.floor(((Number) coordinates.get(0)).doubleValue());
+            y = (int) Math.floor(((Number) coordinates.get(1)).doubleValue());
+            z = (int) Math.floor(((Number) coordinates.get(2)).doubleValue());
+        }
+        else{
+            x = holder.get("x") instanceof Number ? ((Number) holder.get("x")).intValue() : 0;
+            y = holder.get("y") instanceof Number ? ((Number) holder.get("y")).intValue() : 0;
+            z = holder.get("z") instanceof Number ? ((Number) holder.get("z")).intValue() : 0;
+        }
+        return new Entry(type,flags,x,y,z,loottable,storageID);
+    }
+
+    private static boolean isUUID(String string){
+        try {
+            return UUID.fromString(string).toString().equals(string);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public static void writeIndex(Index index, File file) throws IOException {
+        List<String> loottables = new ArrayList<>();
+        Map<String,Integer> loottableIds = new HashMap<>();
+        for(Entry entry : index.entries){
+            if(entry.loottable != null && !loottableIds.containsKey(entry.loottable)){
+                loottableIds.put(entry.loottable,loottables.size());
+                loottables.add(entry.loottable);
+            }
+        }
+        if(file.getParentFile() != null){
+            file.getParentFile().mkdirs();
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(index.world);
+            out.writeLong(index.scanTime);
+            writeVarInt(out,loottables.size());
+            for(String loottable : loottables){
+                out.writeUTF(loottable);
+            }
+            writeVarInt(out,index.entries.size());
+            for(Entry entry : index.entries){
+                out.writeByte(entry.type);
+                out.writeByte(entry.flags);
+                writeVarInt(out,zigzag(entry.x));
+                writeVarInt(out,zigzag(entry.y));
+                writeVarInt(out,zigzag(entry.z));
+                writeVarInt(out,entry.loottable != null ? loottableIds.get(entry.loottable)+1 : 0);
+                if((entry.flags & FLAG_STORAGE_ID) != 0){
+                    out.writeLong(entry.storageID.getMostSignificantBits());
+                    out.writeLong(entry.storageID.getLeastSignificantBits());
+                }
+            }
+        }
+    }
+
+    public static Index readIndex(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC) throw new IOException(file.getName()+" is not a lootin scan index");
+            byte version = in.readByte();
+            if(version != VERSION) throw new IOException("Unsupported scan index version "+version);
+            String world = in.readUTF();
+            long scanTime = in.readLong();
+            String[] loottables = new String[readVarInt(in)];
+            for(int i=0;i<loottables.length;i++){
+                loottables[i] = in.readUTF();
+            }
+            int count = readVarInt(in);
+            List<Entry> entries = new ArrayList<>(count);
+            for(int i=0;i<count;i++){
+                byte type = in.readByte();
+                byte flags = in.readByte();
+                int x = unzigzag(readVarInt(in));
+                int y = unzigzag(readVarInt(in));
+                int z = unzigzag(readVarInt(in));
+                int loottable = readVarInt(in);
+                UUID storageID = (flags & FLAG_STORAGE_ID) != 0 ? new UUID(in.readLong(),in.readLong()) : null;
+                entries.add(new Entry(type,flags,x,y,z,loottable > 0 ? loottables[loottable-1] : null,storageID));
+            }
+            return new Index(world,scanTime,entries);
+        }
+    }
+
+    private static int zigzag(int value){
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0){
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for(int shift=0;shift<35;shift+=7){
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("VarInt too long");
+    }
+
+    public static class Index {
+        private final String world;
+        private final long scanTime;
+        private final List<Entry> entries;
+
+        public Index(String world, long scanTime, List<Entry> entries){
+            this.world = world;
+            this.scanTime = scanTime;
+            this.entries = entries;
+        }
+
+        public String getWorld() {
+            return world;
+        }
+
+        public long getScanTime() {
+            return scanTime;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    public static class Entry {
+        private final byte type;
+        private final byte flags;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final String loottable;
+        private final UUID storageID;
+
+        public Entry(byte type, byte flags, int x, int y, int z, String loottable, UUID storageID){
+            this.type = type;
+            this.flags = flags;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.loottable = loottable;
+            this.storageID = storageID;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public boolean hasLegacyLoot() {
+            return (flags & FLAG_LEGACY_LOOT) != 0;
+        }
+
+        public boolean isLootinContainer() {
+            return (flags & FLAG_IDENTITY) != 0;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getZ() {
+            return z;
+        }
+
+        public String getLoottable() {
+            return loottable;
+        }
+
+        /**
+         * @return the file storage id of this container, null if it was never converted to file storage
+         */
+        public UUID getStorageID() {
+            return storageID;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: RegionScanner <world_folder> <output_file> [threads]");
+            System.out.println("Example: RegionScanner /path/to/server/world /path/to/server/plugins/Lootin/data/scans/world.lsi");
+            return;
+        }
+
+        File worldFolder = new File(args[0]);
+        File outputFile = new File(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        if (!worldFolder.isDirectory()) {
+            System.err.println("World folder does not exist: " + worldFolder.getAbsolutePath());
+            return;
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            Index index = scanWorld(worldFolder, threads);
+            writeIndex(index, outputFile);
+            long legacy = index.getEntries().stream().filter(Entry::hasLegacyLoot).count();
+            System.out.println("Found " + index.getEntries().size() + " lootin containers (" + legacy + " with legacy loot) in "
+                    + (System.currentTimeMillis() - start) + "ms, written to " + outputFile.getAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("Error scanning world: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
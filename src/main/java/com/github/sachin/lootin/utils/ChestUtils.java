@@ -42,7 +42,7 @@ public class ChestUtils{
         LootinContainer lootinContainer = null;
         if(holder==null) return false;
         if(holder.getPersistentDataContainer().has(LConstants.STORAGE_DATA_KEY)){
-            lootinContainer = StorageConverterUtility.getContainerData(holder.getPersistentDataContainer().get(LConstants.STORAGE_DATA_KEY,DataType.UUID));
+            lootinContainer = StorageConverterUtility.getContainerData(holder);
         }
         else{
             lootinContainer = StorageConverterUtility.convert(holder);
@@ -282,7 +282,7 @@ public class ChestUtils{
         if(data != null){
             List<ItemStack> items = new ArrayList<>();
             if(data.has(LConstants.STORAGE_DATA_KEY)){
-                LootinContainer lootinContainer = StorageConverterUtility.getContainerData(data.get(LConstants.STORAGE_DATA_KEY,DataType.UUID));
+                LootinContainer lootinContainer = StorageConverterUtility.getContainerData((PersistentDataHolder) lootable);
                 if(lootinContainer.getPlayerDataMap().containsKey(player.getUniqueId())){
                     PlayerLootData playerLootData = lootinContainer.getPlayerDataMap().get(player.getUniqueId());
                     boolean isRefill = false;
@@ -9,6 +9,7 @@ import java.util.regex.Pattern;
 public class LConstants {
 
     public static final NamespacedKey STORAGE_DATA_KEY = Lootin.getKey("file-storage-key");
+    public static final NamespacedKey STORAGE_POSITION_KEY = Lootin.getKey("storage-position");
     public static final NamespacedKey LOOTTABLE_KEY = Lootin.getKey("lotttable");
     public static final NamespacedKey IDENTITY_KEY = new NamespacedKey(Lootin.getPlugin(), "Lootin");
     public static final NamespacedKey DATA_KEY = new NamespacedKey(Lootin.getPlugin(),"loot-container");
@@ -56,6 +57,32 @@ public class LConstants {
     public static final String BYPASS_GREIF_PLUGINS = "bypass-grief-plugins";
 
     public static final String KEEP_IN_MEMORY = "keep-in-memory";
+    public static final String WRITE_QUEUE_SIZE = "write-queue-size";
+    public static final String CACHE_MAX_WEIGHT = "cache-max-weight";
+    public static final String CACHE_WARMUP = "cache-warmup.enabled";
+    public static final String CACHE_WARMUP_MAX_CONTAINERS = "cache-warmup.max-containers";
+    public static final String CACHE_WARMUP_MAX_WEIGHT = "cache-warmup.max-weight";
+    public static final String STORAGE_TYPE = "storage-type";
+    public static final String STORAGE_COMPRESSION = "storage-compression";
+    public static final String PREFETCH_CONTAINERS = "prefetch-containers";
+    public static final String PREFETCH_NEARBY = "prefetch-nearby.enabled";
+    public static final String PREFETCH_NEARBY_INTERVAL = "prefetch-nearby.interval";
+    public static final String PREFETCH_NEARBY_RADIUS = "prefetch-nearby.radius";
+    public static final String PREFETCH_NEARBY_MAX_CONTAINERS = "prefetch-nearby.max-containers";
+    public static final String ORPHAN_GC = "orphan-gc.enabled";
+    public static final String ORPHAN_GC_BATCH_SIZE = "orphan-gc.batch-size";
+    public static final String ORPHAN_GC_INTERVAL = "orphan-gc.interval";
+    public static final String PLAYER_RETENTION = "player-retention.enabled";
+    public static final String PLAYER_RETENTION_MAX_AGE = "player-retention.max-age-days";
+    public static final String PLAYER_RETENTION_BASED_ON = "player-retention.based-on";
+    public static final String MIGRATION_CHUNKS_PER_TICK = "migration.chunks-per-tick";
+    public static final String SNAPSHOTS = "snapshots.enabled";
+    public static final String SNAPSHOTS_INTERVAL = "snapshots.interval";
+    public static final String SNAPSHOTS_FULL_EVERY = "snapshots.full-every";
+    public static final String SNAPSHOTS_KEEP_FULL = "snapshots.keep-full";
+    public static final String JOURNAL = "journal.enabled";
+    public static final String JOURNAL_SYNC_INTERVAL = "journal.sync-interval";
+    public static final String JOURNAL_CHECKPOINT_INTERVAL = "journal.checkpoint-interval";
     public static final String SHARED_MODE = "shared-mode";
     public static final String SHARED_REFILL_TIME = "shared-refill-time";
     public static final String SHARED_RESET_SEED = "shared-reset-seed-on-fill";
@@ -0,0 +1,107 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+
+/**
+ * Keeps the most used containers in the cache over a restart. On shutdown the ids of the cached containers that
+ * were looked up the most are written to hotset.txt with their lookup counts, on the next start they are loaded
+ * into the cache in that order off the server thread, so the containers around spawn and popular structures
+ * don't have to wait for disk when the first players open them.
+ */
+public class CacheWarmup {
+
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Writes the most used cached containers, has to be called before the cache is cleared on shutdown
+     */
+    public static void saveHotSet(Lootin plugin, File file, ContainerCache cache, int maxContainers){
+        List<String> lines = new ArrayList<>();
+        for(Map.Entry<LootinContainer,Integer> entry : cache.getMostUsed(maxContainers)){
+            // containers nobody opened since they got cached are not worth loading early
+            if(entry.getValue() == 0) break;
+            LootinContainer container = entry.getKey();
+            lines.add(entry.getValue()+" "+container.getContainerID()+" "+(container.getPosition() != null ? container.getPosition().serialize() : "-"));
+        }
+        try {
+            Files.write(file.toPath(),lines,StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING,"Could not save the most used containers for the next start",e);
+        }
+    }
+
+    /**
+     * Loads the containers of the hot set into the cache, most used first, until given amount or total weight
+     * is reached. Has to run off the server thread.
+     * @return number of loaded containers
+     */
+    public static int warm(Lootin plugin, File file, int maxContainers, long maxWeight){
+        if(!file.exists()) return 0;
+        long start = System.currentTimeMillis();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(),StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING,"Could not read the most used containers of the last run",e);
+            return 0;
+        }
+        // written most used first
+        Map<UUID,StoragePosition> hotSet = new LinkedHashMap<>();
+        for(String line : lines){
+            if(hotSet.size() >= maxContainers) break;
+            // world names may contain spaces
+            String[] split = line.split(" ",3);
+            if(split.length != 3) continue;
+            try {
+                hotSet.put(UUID.fromString(split[1]),StoragePosition.deserialize(split[2]));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+
+        int loaded = 0;
+        long weight = 0;
+        List<UUID> ids = new ArrayList<>(hotSet.keySet());
+        for(int i=0;i<ids.size() && weight < maxWeight && plugin.isEnabled();i+=BATCH_SIZE){
+            Map<UUID,StoragePosition> batch = new LinkedHashMap<>();
+            Map<UUID,CompletableFuture<LootinContainer>> futures = new HashMap<>();
+            for(UUID containerID : ids.subList(i,Math.min(ids.size(),i+BATCH_SIZE))){
+                // opened already, or storage doesn't have the newest data of it yet
+                if(plugin.cachedContainers.containsKey(containerID) || plugin.getWriteQueue().isPending(containerID)) continue;
+                CompletableFuture<LootinContainer> future = StorageConverterUtility.beginLoad(containerID);
+                if(future == null) continue;
+                futures.put(containerID,future);
+                batch.put(containerID,hotSet.get(containerID));
+            }
+            if(batch.isEmpty()) continue;
+            Map<UUID,Long> submitCounts = plugin.getWriteQueue().getSubmitCounts(batch.keySet());
+            Map<UUID,LootinContainer> containers = new HashMap<>();
+            try {
+                containers.putAll(plugin.getStorageBackend().loadAll(batch));
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.WARNING,"Failed to load "+batch.size()+" containers of the hot set",e);
+            }
+            // a save queued while reading could be newer than what got read
+            plugin.getWriteQueue().removeSubmitted(containers,submitCounts);
+            for(UUID containerID : batch.keySet()){
+                LootinContainer container = containers.get(containerID);
+                StorageConverterUtility.finishLoad(containerID,futures.get(containerID),container);
+                if(container == null || weight >= maxWeight) continue;
+                if(StorageConverterUtility.cacheLoaded(container) == container){
+                    StorageStats.recordLoad();
+                    weight += ContainerCache.weigh(container);
+                    loaded++;
+                }
+            }
+        }
+        plugin.getLogger().info("Loaded "+loaded+" of the "+hotSet.size()+" most used containers into the cache (weight "+weight+") in "+(System.currentTimeMillis()-start)+"ms");
+        return loaded;
+    }
+}
@@ -0,0 +1,833 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The container cache, bounded by the total weight of the cached containers. A container weighs one plus one for
+ * every player entry and every stored item stack, which roughly follows the memory it takes.
+ * <p>
+ * Entries are kept W-TinyLFU style: new containers enter a small window ordered by last use, when it overflows its
+ * oldest entry becomes a candidate for the main space. The main space is split into a probation and a protected part,
+ * a container used again while on probation becomes protected. Once the cache is too heavy the candidate only stays if
+ * it was used more often recently than the oldest entry on probation, which {@link FrequencySketch} estimates. That way
+ * a burst of containers opened once can't push out the ones players keep coming back to.
+ * <p>
+ * Containers also expire once they were not used for keep-in-memory ticks. Their deadlines are kept in a hierarchical
+ * {@link TimerWheel}, so {@link #expire(long)} only looks at the containers that are about to be due instead of all of them.
+ * <p>
+ * Evicted and expired containers are handed to the eviction listener, which saves them.
+ * <p>
+ * The cache can be used from any thread, like the region threads of Folia. It is split into segments by container id,
+ * each with its own share of the weight, eviction order, timer wheel and lock, so threads working on different
+ * containers rarely wait for each other. Lookups go straight to the concurrent map of a segment and only record the use
+ * for the eviction order if the lock of the segment is free, the time of the use is always recorded so a busy container
+ * can't expire. The eviction listener is called after the lock is released, until it returns a lookup of that container
+ * waits for it and {@link #containsKey(Object)} still finds it, so nobody reads the container from storage before its
+ * save got queued.
+ */
+public class ContainerCache extends AbstractMap<UUID,LootinContainer> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final int MAX_SEGMENTS = 16;
+    // segments are only added while each keeps at least this much weight, too small ones evict almost at random
+    private static final long MIN_SEGMENT_WEIGHT = 1024;
+
+    // timer wheel levels, ticks covered by one bucket are 3.2 seconds, 3.4 minutes, 3.6 hours, 4.9 days and 19 days
+    private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+    private static final int[] SHIFTS = {6, 12, 18, 23, 25};
+    private static final long[] SPANS = {1L << 6, 1L << 12, 1L << 18, 1L << 23, 1L << 25, 1L << 25};
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    // containers that left the cache and are still being handed to the eviction listener
+    private final Map<UUID,CompletableFuture<Void>> retiring = new ConcurrentHashMap<>();
+    private final Consumer<LootinContainer> evictionListener;
+    private volatile long expireAfter;
+    private final long maxWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    private EntrySet entrySet;
+
+    /**
+     * @param maxWeight the total weight the cache is kept under
+     * @param expireAfter ticks after their last use containers expire
+     * @param evictionListener receives every container that is evicted or expires
+     */
+    public ContainerCache(long maxWeight, long expireAfter, Consumer<LootinContainer> evictionListener){
+        this.expireAfter = Math.max(0,expireAfter);
+        this.maxWeight = Math.max(1,maxWeight);
+        this.evictionListener = evictionListener;
+        int count = Integer.highestOneBit((int) Math.max(1,Math.min(MAX_SEGMENTS,this.maxWeight/MIN_SEGMENT_WEIGHT)));
+        this.segments = new Segment[count];
+        this.segmentShift = 32-Integer.numberOfTrailingZeros(count);
+        for(int i=0;i<count;i++){
+            segments[i] = new Segment(Math.max(1,this.maxWeight/count));
+        }
+    }
+
+    /**
+     * @return the estimated weight of given container, see {@link ContainerCache}
+     */
+    public static int weigh(LootinContainer container){
+        int weight = 1+countItems(container.getDefaultLoot());
+        for(PlayerLootData playerData : container.getPlayerDataMap().values()){
+            weight += 1+countItems(playerData.peekItems());
+        }
+        return weight;
+    }
+
+    private static int countItems(List<ItemStack> items){
+        if(items == null) return 0;
+        int count = 0;
+        for(ItemStack item : items){
+            if(item != null) count++;
+        }
+        return count;
+    }
+
+    private Segment segmentFor(UUID key){
+        // the low bits of the hash pick the sketch counters, the high ones the segment
+        return segments.length == 1 ? segments[0] : segments[FrequencySketch.spread(key) >>> segmentShift];
+    }
+
+    /**
+     * Returns the cached container and records the use of it, counting towards the hit ratio
+     */
+    @Override
+    public LootinContainer get(Object key){
+        if(!(key instanceof UUID)) return null;
+        Segment segment = segmentFor((UUID) key);
+        Node node = segment.data.get(key);
+        if(node == null){
+            misses.incrementAndGet();
+            if(segment.lock.tryLock()){
+                try {
+                    segment.sketch.increment((UUID) key);
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+            CompletableFuture<Void> retired = retiring.get(key);
+            // once the listener is done the caller finds the save of the container instead of an older stored copy
+            if(retired != null){
+                retired.join();
+            }
+            return null;
+        }
+        hits.incrementAndGet();
+        node.accessTime = segment.timers.time;
+        node.accesses++;
+        // skipped while another thread changes the segment, the eviction order catches up with later uses
+        if(segment.lock.tryLock()){
+            try {
+                segment.sketch.increment(node.key);
+                if(segment.data.get(node.key) == node){
+                    segment.onAccess(node);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * @return true if the container is cached or still being handed to the eviction listener
+     */
+    @Override
+    public boolean containsKey(Object key){
+        if(!(key instanceof UUID)) return false;
+        return segmentFor((UUID) key).data.containsKey(key) || retiring.containsKey(key);
+    }
+
+    /**
+     * Caches given container or replaces the cached one, its weight is estimated again since the caller
+     * usually just changed it. Evicts containers if the cache got too heavy.
+     */
+    @Override
+    public LootinContainer put(UUID key, LootinContainer value){
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Node node = segment.data.get(key);
+            if(node != null){
+                LootinContainer old = node.value;
+                node.value = value;
+                segment.update(node);
+                return old;
+            }
+            segment.add(key,value);
+            return null;
+        } finally {
+            segment.unlockAndNotify();
+        }
+    }
+
+    /**
+     * Weighs given container again and records a use of it, but only if it is still the cached instance
+     * @return false if a different instance or nothing is cached
+     */
+    @Override
+    public boolean replace(UUID key, LootinContainer expected, LootinContainer value){
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Node node = segment.data.get(key);
+            if(node == null || node.value != expected) return false;
+            node.value = value;
+            segment.update(node);
+            return true;
+        } finally {
+            segment.unlockAndNotify();
+        }
+    }
+
+    /**
+     * Caches given container unless one is cached already, without recording a use of the cached one
+     */
+    @Override
+    public LootinContainer putIfAbsent(UUID key, LootinContainer value){
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Node node = segment.data.get(key);
+            if(node != null) return node.value;
+            segment.add(key,value);
+            return null;
+        } finally {
+            segment.unlockAndNotify();
+        }
+    }
+
+    @Override
+    public LootinContainer remove(Object key){
+        if(!(key instanceof UUID)) return null;
+        Segment segment = segmentFor((UUID) key);
+        segment.lock.lock();
+        try {
+            Node node = segment.data.remove(key);
+            if(node == null) return null;
+            segment.unlink(node);
+            return node.value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private void remove(Node node){
+        Segment segment = segmentFor(node.key);
+        segment.lock.lock();
+        try {
+            if(segment.data.remove(node.key,node)){
+                segment.unlink(node);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear(){
+        for(Segment segment : segments){
+            segment.lock.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the clock of the cache forward and expires the containers that became due, called by the cache sweep
+     * @return number of expired containers
+     */
+    public int expire(long ticks){
+        int expired = 0;
+        for(Segment segment : segments){
+            segment.lock.lock();
+            try {
+                long before = segment.expirations;
+                segment.timers.advance(segment.timers.time+ticks);
+                expired += (int) (segment.expirations-before);
+            } finally {
+                segment.unlockAndNotify();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Makes given container expire on the next {@link #expire(long)} call, if it is cached
+     */
+    public void expireNow(UUID key){
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Node node = segment.data.get(key);
+            if(node != null){
+                node.accessTime = segment.timers.time-expireAfter;
+                segment.timers.reschedule(node,segment.timers.time);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Changes after how many ticks without use containers expire, containers already waiting for a longer
+     * deadline keep it until they are used again
+     */
+    public void setExpireAfter(long expireAfter) {
+        this.expireAfter = Math.max(0,expireAfter);
+    }
+
+    @Override
+    public int size(){
+        int size = 0;
+        for(Segment segment : segments){
+            size += segment.data.size();
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<UUID,LootinContainer>> entrySet(){
+        if(entrySet == null){
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    public long getWeight() {
+        long weight = 0;
+        for(Segment segment : segments){
+            weight += segment.weight;
+        }
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of containers evicted because the cache got too heavy
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of containers that expired because they were not used for keep-in-memory ticks
+     */
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the cached containers with how often each was looked up since it got cached, most used first
+     */
+    public List<Map.Entry<LootinContainer,Integer>> getMostUsed(int limit){
+        List<Node> nodes = new ArrayList<>();
+        for(Segment segment : segments){
+            nodes.addAll(segment.data.values());
+        }
+        nodes.sort((a, b) -> Integer.compare(b.accesses,a.accesses));
+        List<Map.Entry<LootinContainer,Integer>> mostUsed = new ArrayList<>(Math.min(limit,nodes.size()));
+        for(int i=0;i<nodes.size() && i<limit;i++){
+            mostUsed.add(new SimpleImmutableEntry<>(nodes.get(i).value,nodes.get(i).accesses));
+        }
+        return mostUsed;
+    }
+
+    /**
+     * @return share of lookups that found the container cached, 0 to 1
+     */
+    public double getHitRatio(){
+        long hits = this.hits.get();
+        long requests = hits+misses.get();
+        return requests == 0 ? 0 : (double) hits/requests;
+    }
+
+    /**
+     * One part of the cache, everything but the map of its containers is guarded by its lock
+     */
+    private class Segment {
+
+        private final Map<UUID,Node> data = new ConcurrentHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Node window = new Node(null,null);
+        private final Node probation = new Node(null,null);
+        private final Node protectedQueue = new Node(null,null);
+        private final FrequencySketch sketch = new FrequencySketch();
+        private final TimerWheel timers = new TimerWheel(this::expire);
+        // containers that left while the lock was held, handed to the eviction listener once it is released
+        private final List<Node> removed = new ArrayList<>();
+
+        private final long maxWeight;
+        private final long maxWindowWeight;
+        private final long maxProtectedWeight;
+        private volatile long weight;
+        private long windowWeight;
+        private long protectedWeight;
+        private long expirations;
+
+        private Segment(long maxWeight){
+            this.maxWeight = maxWeight;
+            this.maxWindowWeight = Math.max(1,maxWeight/100);
+            this.maxProtectedWeight = (maxWeight-maxWindowWeight)*80/100;
+            for(Node queue : new Node[]{window,probation,protectedQueue}){
+                queue.previous = queue;
+                queue.next = queue;
+            }
+        }
+
+        /**
+         * Releases the lock, then hands the containers that left the segment to the eviction listener
+         */
+        private void unlockAndNotify(){
+            if(removed.isEmpty()){
+                lock.unlock();
+                return;
+            }
+            List<Node> notify = new ArrayList<>(removed);
+            removed.clear();
+            lock.unlock();
+            for(Node node : notify){
+                try {
+                    evictionListener.accept(node.value);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    retiring.remove(node.key,node.retired);
+                    node.retired.complete(null);
+                }
+            }
+        }
+
+        private void add(UUID key, LootinContainer value){
+            Node node = new Node(key,value);
+            node.weight = weigh(value);
+            node.queue = WINDOW;
+            data.put(key,node);
+            sketch.ensureCapacity(data.size());
+            linkLast(window,node);
+            node.accessTime = timers.time;
+            node.expiresAt = node.accessTime+expireAfter;
+            timers.schedule(node);
+            weight += node.weight;
+            windowWeight += node.weight;
+            evict();
+        }
+
+        private void update(Node node){
+            node.accessTime = timers.time;
+            reweigh(node);
+            onAccess(node);
+            evict();
+        }
+
+        private void clear(){
+            data.clear();
+            for(Node queue : new Node[]{window,probation,protectedQueue}){
+                queue.previous = queue;
+                queue.next = queue;
+            }
+            timers.clear();
+            weight = 0;
+            windowWeight = 0;
+            protectedWeight = 0;
+        }
+
+        private void onAccess(Node node){
+            if(node.queue == WINDOW){
+                moveToEnd(window,node);
+            }
+            else if(node.queue == PROBATION){
+                unlinkFromQueue(node);
+                node.queue = PROTECTED;
+                protectedWeight += node.weight;
+                linkLast(protectedQueue,node);
+                // demote the least recently used protected containers to keep room for probation
+                while (protectedWeight > maxProtectedWeight && protectedQueue.next != node){
+                    Node demoted = protectedQueue.next;
+                    unlinkFromQueue(demoted);
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    linkLast(probation,demoted);
+                }
+            }
+            else{
+                moveToEnd(protectedQueue,node);
+            }
+        }
+
+        private void reweigh(Node node){
+            int newWeight = weigh(node.value);
+            int difference = newWeight-node.weight;
+            node.weight = newWeight;
+            weight += difference;
+            if(node.queue == WINDOW){
+                windowWeight += difference;
+            }
+            else if(node.queue == PROTECTED){
+                protectedWeight += difference;
+            }
+        }
+
+        private void evict(){
+            // containers leaving the window go on probation and become candidates
+            Node candidate = null;
+            while (windowWeight > maxWindowWeight && window.next != window){
+                Node node = window.next;
+                unlinkFromQueue(node);
+                windowWeight -= node.weight;
+                node.queue = PROBATION;
+                linkLast(probation,node);
+                if(candidate == null) candidate = node;
+            }
+            while (weight > maxWeight && !data.isEmpty()){
+                Node victim = probation.next != probation ? probation.next : protectedQueue.next != protectedQueue ? protectedQueue.next : window.next;
+                if(candidate == victim){
+                    candidate = candidate.next != probation ? candidate.next : null;
+                    evict(victim);
+                    continue;
+                }
+                if(candidate == null){
+                    evict(victim);
+                    continue;
+                }
+                if(sketch.frequency(candidate.key) > sketch.frequency(victim.key)){
+                    evict(victim);
+                }
+                else{
+                    Node rejected = candidate;
+                    candidate = candidate.next != probation ? candidate.next : null;
+                    evict(rejected);
+                }
+            }
+        }
+
+        private void evict(Node node){
+            retire(node);
+            evictions.incrementAndGet();
+        }
+
+        private void expire(Node node){
+            retire(node);
+            expirations++;
+            ContainerCache.this.expirations.incrementAndGet();
+        }
+
+        private void retire(Node node){
+            data.remove(node.key);
+            unlink(node);
+            node.retired = new CompletableFuture<>();
+            retiring.put(node.key,node.retired);
+            removed.add(node);
+        }
+
+        private void unlink(Node node){
+            unlinkFromQueue(node);
+            timers.unlink(node);
+            weight -= node.weight;
+            if(node.queue == WINDOW){
+                windowWeight -= node.weight;
+            }
+            else if(node.queue == PROTECTED){
+                protectedWeight -= node.weight;
+            }
+        }
+    }
+
+    private static void unlinkFromQueue(Node node){
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        node.previous = null;
+        node.next = null;
+    }
+
+    private static void linkLast(Node queue, Node node){
+        node.previous = queue.previous;
+        node.next = queue;
+        queue.previous.next = node;
+        queue.previous = node;
+    }
+
+    private static void moveToEnd(Node queue, Node node){
+        unlinkFromQueue(node);
+        linkLast(queue,node);
+    }
+
+    private static class Node {
+        private final UUID key;
+        private volatile LootinContainer value;
+        private volatile long accessTime;
+        // lookups since the container was cached, may miss a few that raced
+        private volatile int accesses;
+        private int weight;
+        private int queue;
+        private Node previous;
+        private Node next;
+        private long expiresAt;
+        private Node previousTimer;
+        private Node nextTimer;
+        // completed once the eviction listener got the container
+        private CompletableFuture<Void> retired;
+
+        private Node(UUID key, LootinContainer value){
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Deadlines of the cached containers, in ticks of the cache clock. Every level of the wheel is a ring of buckets
+     * that each cover a span of time, coarser the further a deadline is away. Advancing the clock only walks the
+     * buckets it passed, containers in a bucket of an upper level move to a finer bucket until they are due.
+     */
+    private class TimerWheel {
+
+        private final Node[][] wheel = new Node[BUCKETS.length][];
+        private final Consumer<Node> onExpire;
+        private volatile long time;
+
+        private TimerWheel(Consumer<Node> onExpire){
+            this.onExpire = onExpire;
+            for(int i=0;i<wheel.length;i++){
+                wheel[i] = new Node[BUCKETS[i]];
+                for(int j=0;j<BUCKETS[i];j++){
+                    Node sentinel = new Node(null,null);
+                    sentinel.previousTimer = sentinel;
+                    sentinel.nextTimer = sentinel;
+                    wheel[i][j] = sentinel;
+                }
+            }
+        }
+
+        private void schedule(Node node){
+            Node sentinel = findBucket(Math.max(node.expiresAt,time));
+            node.previousTimer = sentinel.previousTimer;
+            node.nextTimer = sentinel;
+            sentinel.previousTimer.nextTimer = node;
+            sentinel.previousTimer = node;
+        }
+
+        private void reschedule(Node node, long expiresAt){
+            unlink(node);
+            node.expiresAt = expiresAt;
+            schedule(node);
+        }
+
+        private void unlink(Node node){
+            if(node.nextTimer == null) return;
+            node.previousTimer.nextTimer = node.nextTimer;
+            node.nextTimer.previousTimer = node.previousTimer;
+            node.previousTimer = null;
+            node.nextTimer = null;
+        }
+
+        private Node findBucket(long expiresAt){
+            long duration = expiresAt-time;
+            for(int i=0;i<wheel.length-1;i++){
+                if(duration < SPANS[i+1]){
+                    int index = (int) ((expiresAt >>> SHIFTS[i]) & (wheel[i].length-1));
+                    return wheel[i][index];
+                }
+            }
+            return wheel[wheel.length-1][0];
+        }
+
+        private void advance(long currentTime){
+            long previousTime = time;
+            time = currentTime;
+            for(int i=0;i<wheel.length;i++){
+                long previousTicks = previousTime >>> SHIFTS[i];
+                long currentTicks = currentTime >>> SHIFTS[i];
+                if(currentTicks-previousTicks <= 0) break;
+                expire(i,previousTicks,currentTicks-previousTicks);
+            }
+        }
+
+        /**
+         * Expires the due containers of every bucket given level passed and moves the others down the wheel
+         */
+        private void expire(int level, long previousTicks, long delta){
+            Node[] buckets = wheel[level];
+            int mask = buckets.length-1;
+            int steps = (int) Math.min(1+delta,buckets.length);
+            int start = (int) (previousTicks & mask);
+            for(int i=start;i<start+steps;i++){
+                Node sentinel = buckets[i & mask];
+                Node node = sentinel.nextTimer;
+                sentinel.previousTimer = sentinel;
+                sentinel.nextTimer = sentinel;
+                while (node != sentinel){
+                    Node next = node.nextTimer;
+                    node.previousTimer = null;
+                    node.nextTimer = null;
+                    // uses only record their time, the deadline moves here
+                    long deadline = node.accessTime+expireAfter;
+                    if(deadline-time <= 0){
+                        onExpire.accept(node);
+                    }
+                    else{
+                        node.expiresAt = deadline;
+                        schedule(node);
+                    }
+                    node = next;
+                }
+            }
+        }
+
+        private void clear(){
+            for(Node[] buckets : wheel){
+                for(Node sentinel : buckets){
+                    sentinel.previousTimer = sentinel;
+                    sentinel.nextTimer = sentinel;
+                }
+            }
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<UUID,LootinContainer>> {
+
+        @Override
+        public Iterator<Map.Entry<UUID,LootinContainer>> iterator(){
+            return new Iterator<Map.Entry<UUID,LootinContainer>>() {
+                private int segment;
+                private Iterator<Node> nodes = segments[0].data.values().iterator();
+                private Node current;
+
+                @Override
+                public boolean hasNext(){
+                    while (!nodes.hasNext() && segment < segments.length-1){
+                        nodes = segments[++segment].data.values().iterator();
+                    }
+                    return nodes.hasNext();
+                }
+
+                @Override
+                public Map.Entry<UUID,LootinContainer> next(){
+                    if(!hasNext()) throw new NoSuchElementException();
+                    current = nodes.next();
+                    return new SimpleImmutableEntry<>(current.key,current.value);
+                }
+
+                @Override
+                public void remove(){
+                    if(current == null) throw new IllegalStateException();
+                    ContainerCache.this.remove(current);
+                    current = null;
+                }
+            };
+        }
+
+        @Override
+        public int size(){
+            return ContainerCache.this.size();
+        }
+    }
+
+    /**
+     * Estimates how often each container was used recently in a count-min sketch of 4 bit counters, four counters per
+     * container. All counters are halved once enough uses were recorded, so old popularity fades out.
+     */
+    static class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private long[] table = new long[0];
+        private int tableMask;
+        private int sampleSize;
+        private int additions;
+
+        /**
+         * Grows the sketch so it stays accurate for given number of containers, growing forgets all recorded uses
+         */
+        void ensureCapacity(int size){
+            int length = Integer.highestOneBit(Math.max(64,size)-1) << 1;
+            if(length <= table.length) return;
+            table = new long[length];
+            tableMask = length-1;
+            sampleSize = 10*length;
+            additions = 0;
+        }
+
+        void increment(UUID key){
+            if(table.length == 0) return;
+            int hash = spread(key);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for(int i=0;i<4;i++){
+                added |= incrementAt(indexOf(hash,i),start+i);
+            }
+            if(added && ++additions >= sampleSize){
+                reset();
+            }
+        }
+
+        int frequency(UUID key){
+            if(table.length == 0) return 0;
+            int hash = spread(key);
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for(int i=0;i<4;i++){
+                int offset = (start+i) << 2;
+                frequency = Math.min(frequency,(int) ((table[indexOf(hash,i)] >>> offset) & 0xfL));
+            }
+            return frequency;
+        }
+
+        private boolean incrementAt(int index, int counter){
+            int offset = counter << 2;
+            long mask = 0xfL << offset;
+            if((table[index] & mask) == mask) return false;
+            table[index] += 1L << offset;
+            return true;
+        }
+
+        private void reset(){
+            for(int i=0;i<table.length;i++){
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int i){
+            long index = (hash+SEEDS[i])*SEEDS[i];
+            index += index >>> 32;
+            return ((int) index) & tableMask;
+        }
+
+        static int spread(UUID key){
+            long hash = key.getMostSignificantBits() ^ key.getLeastSignificantBits();
+            hash = (hash ^ (hash >>> 33))*0xff51afd7ed558ccdL;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary format for {@link LootinContainer} records.
+ * <pre>
+ * record  := 'L' 'C' version containerID loottable blobs refs(defaultLoot) varint(playerCount) player*
+ * player  := playerID varlong(lastLootTime) varint(refills) (varint(0) refs | varint(1) delta)
+ * blobs   := varint(blobCount) (varint(length) bytes)*     every distinct serialized stack, stored once
+ * refs    := varint(slotCount) varint(blobIndex+1)*        0 = empty slot
+ * delta   := varint(changeCount) change*                   slots not listed are the same as the default loot
+ * change  := varint(slot &lt;&lt; 1) varint(blobIndex+1) | varint(slot &lt;&lt; 1 | 1) varint(amount)
+ * uuid    := 16 bytes, most significant bits first
+ * string  := varint(length) utf8                           length 0 = null
+ * </pre>
+ * Players usually share most of their loot with the default loot and with each other, so slots only reference
+ * the blob table. A player whose slots mostly match the default loot is stored as the slots that differ, a slot
+ * that only lost part of its stack stores just the new amount. Player items are rebuilt from the shared decoded
+ * stacks only when they are first accessed. Version 1 records stored every slot inline as
+ * {@code varint(length) bytes} and version 2 records had no delta mode, both are still readable.
+ * Item bytes come from Paper's {@link ItemStack#serializeAsBytes()}, so this codec is only used on Paper servers.
+ * Records written by the old gzip-yaml format start with the gzip magic and are recognised by {@link #isBinary(byte[])}.
+ */
+public class ContainerCodec {
+
+    public static final int VERSION = 3;
+
+    private static final int PLAYER_FULL = 0;
+    private static final int PLAYER_DELTA = 1;
+
+    private static final byte MAGIC_1 = 'L';
+    private static final byte MAGIC_2 = 'C';
+
+    public static boolean isBinary(byte[] data){
+        return isBinary(data,data.length);
+    }
+
+    public static boolean isBinary(byte[] data, int length){
+        return length >= 3 && data[0] == MAGIC_1 && data[1] == MAGIC_2;
+    }
+
+    public static byte[] encode(LootinContainer container) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(byteStream);
+        out.writeByte(MAGIC_1);
+        out.writeByte(MAGIC_2);
+        out.writeByte(VERSION);
+        writeUUID(out,container.getContainerID());
+        writeString(out,container.getLoottable());
+        ItemTable table = new ItemTable();
+        List<ItemStack> template = container.getDefaultLoot();
+        int[] defaultRefs = table.add(template);
+        // players go first into their own buffer since they add to the blob table written before them
+        ByteArrayOutputStream playerStream = new ByteArrayOutputStream(256);
+        DataOutputStream players = new DataOutputStream(playerStream);
+        for(PlayerLootData playerData : container.getPlayerDataMap().values()){
+            writeUUID(players,playerData.getPlayerID());
+            writeVarLong(players,playerData.getLastLootTime());
+            writeVarInt(players,playerData.getRefills());
+            writePlayerItems(players,table,template,playerData.peekItems());
+        }
+        players.flush();
+        writeVarInt(out,table.blobs.size());
+        for(byte[] blob : table.blobs){
+            writeVarInt(out,blob.length);
+            out.write(blob);
+        }
+        writeRefs(out,defaultRefs);
+        writeVarInt(out,container.getPlayerDataMap().size());
+        playerStream.writeTo(out);
+        out.flush();
+        return byteStream.toByteArray();
+    }
+
+    public static void decode(byte[] data, LootinContainer container) throws IOException {
+        decode(data,data.length,container);
+    }
+
+    /**
+     * Decodes the first length bytes of given array, which can be a reused buffer as nothing keeps a reference to it
+     */
+    public static void decode(byte[] data, int length, LootinContainer container) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data,0,length));
+        if(in.readByte() != MAGIC_1 || in.readByte() != MAGIC_2){
+            throw new IOException("Not a binary lootin container record");
+        }
+        int version = in.readUnsignedByte();
+        if(version > VERSION){
+            throw new IOException("Unsupported lootin container record version "+version);
+        }
+        readUUID(in);
+        container.setLoottable(readString(in));
+        if(version == 1){
+            container.setDefaultLoot(readItems(in));
+            int players = readVarInt(in);
+            for(int i=0;i<players;i++){
+                UUID playerID = readUUID(in);
+                long lastLootTime = readVarLong(in);
+                int refills = readVarInt(in);
+                container.getPlayerDataMap().put(playerID,new PlayerLootData(playerID,readItems(in),lastLootTime,refills));
+            }
+            return;
+        }
+        ItemStack[] blobs = readBlobs(in);
+        List<ItemStack> template = readRefs(in,blobs);
+        container.setDefaultLoot(LootinContainer.copyItems(template));
+        int players = readVarInt(in);
+        for(int i=0;i<players;i++){
+            UUID playerID = readUUID(in);
+            long lastLootTime = readVarLong(in);
+            int refills = readVarInt(in);
+            List<ItemStack> items;
+            if(version == 2 || readVarInt(in) == PLAYER_FULL){
+                items = readRefs(in,blobs);
+            }
+            else{
+                items = readDelta(in,blobs,template);
+            }
+            container.getPlayerDataMap().put(playerID,PlayerLootData.lazy(playerID,items,lastLootTime,refills));
+        }
+    }
+
+    /**
+     * Encodes a single item list, used by backends that store player data separately
+     */
+    public static byte[] encodeItems(List<ItemStack> items) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(byteStream);
+        writeItems(out,items);
+        out.flush();
+        return byteStream.toByteArray();
+    }
+
+    public static List<ItemStack> decodeItems(byte[] data) throws IOException {
+        return readItems(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static void writeItems(DataOutputStream out, List<ItemStack> items) throws IOException {
+        if(items == null){
+            writeVarInt(out,0);
+            return;
+        }
+        writeVarInt(out,items.size());
+        for(ItemStack item : items){
+            if(isEmpty(item)){
+                writeVarInt(out,0);
+                continue;
+            }
+            byte[] bytes = item.serializeAsBytes();
+            writeVarInt(out,bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static List<ItemStack> readItems(DataInputStream in) throws IOException {
+        int size = readVarInt(in);
+        List<ItemStack> items = new ArrayList<>(size);
+        for(int i=0;i<size;i++){
+            int length = readVarInt(in);
+            if(length == 0){
+                items.add(null);
+                continue;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            items.add(ItemStack.deserializeBytes(bytes));
+        }
+        return items;
+    }
+
+    private static void writePlayerItems(DataOutputStream out, ItemTable table, List<ItemStack> template, List<ItemStack> items) throws IOException {
+        if(items != null && template != null && !template.isEmpty() && items.size() == template.size()){
+            int changes = 0;
+            for(int i=0;i<items.size();i++){
+                if(!isSame(template.get(i),items.get(i))) changes++;
+            }
+            // a change costs at least two varints where a full slot costs one
+            if(changes*2 < items.size()){
+                writeVarInt(out,PLAYER_DELTA);
+                writeVarInt(out,changes);
+                for(int i=0;i<items.size();i++){
+                    ItemStack base = template.get(i);
+                    ItemStack item = items.get(i);
+                    if(isSame(base,item)) continue;
+                    if(!isEmpty(base) && !isEmpty(item) && base.isSimilar(item)){
+                        writeVarInt(out,i << 1 | 1);
+                        writeVarInt(out,item.getAmount());
+                    }
+                    else{
+                        writeVarInt(out,i << 1);
+                        writeVarInt(out,table.add(item));
+                    }
+                }
+                return;
+            }
+        }
+        writeVarInt(out,PLAYER_FULL);
+        writeRefs(out,table.add(items));
+    }
+
+    private static List<ItemStack> readDelta(DataInputStream in, ItemStack[] blobs, List<ItemStack> template) throws IOException {
+        List<ItemStack> items = new ArrayList<>(template);
+        int changes = readVarInt(in);
+        for(int i=0;i<changes;i++){
+            int change = readVarInt(in);
+            int slot = change >>> 1;
+            if(slot >= items.size()){
+                throw new IOException("Delta slot "+slot+" out of range");
+            }
+            if((change & 1) != 0){
+                ItemStack base = template.get(slot);
+                if(base == null){
+                    throw new IOException("Amount change on empty slot "+slot);
+                }
+                ItemStack item = base.clone();
+                item.setAmount(readVarInt(in));
+                items.set(slot,item);
+            }
+            else{
+                items.set(slot,getBlob(blobs,readVarInt(in)));
+            }
+        }
+        return items;
+    }
+
+    private static boolean isEmpty(ItemStack item){
+        return item == null || item.getType().isAir() || item.getAmount() <= 0;
+    }
+
+    private static boolean isSame(ItemStack base, ItemStack item){
+        if(isEmpty(base) || isEmpty(item)) return isEmpty(base) == isEmpty(item);
+        return base.getAmount() == item.getAmount() && base.isSimilar(item);
+    }
+
+    private static void writeRefs(DataOutputStream out, int[] refs) throws IOException {
+        writeVarInt(out,refs.length);
+        for(int ref : refs){
+            writeVarInt(out,ref);
+        }
+    }
+
+    private static ItemStack[] readBlobs(DataInputStream in) throws IOException {
+        ItemStack[] blobs = new ItemStack[readVarInt(in)];
+        for(int i=0;i<blobs.length;i++){
+            byte[] bytes = new byte[readVarInt(in)];
+            in.readFully(bytes);
+            blobs[i] = ItemStack.deserializeBytes(bytes);
+        }
+        return blobs;
+    }
+
+    /**
+     * Each blob is deserialized once and the returned stacks are shared between slots,
+     * callers have to copy them before handing them out
+     */
+    private static List<ItemStack> readRefs(DataInputStream in, ItemStack[] blobs) throws IOException {
+        int size = readVarInt(in);
+        List<ItemStack> items = new ArrayList<>(size);
+        for(int i=0;i<size;i++){
+            items.add(getBlob(blobs,readVarInt(in)));
+        }
+        return items;
+    }
+
+    private static ItemStack getBlob(ItemStack[] blobs, int ref) throws IOException {
+        if(ref == 0) return null;
+        if(ref > blobs.length){
+            throw new IOException("Item reference "+ref+" out of range");
+        }
+        return blobs[ref-1];
+    }
+
+    /**
+     * Distinct serialized stacks of one record, keyed by their content
+     */
+    private static class ItemTable {
+
+        private final Map<ByteBuffer,Integer> index = new HashMap<>();
+        private final List<byte[]> blobs = new ArrayList<>();
+
+        private int[] add(List<ItemStack> items){
+            if(items == null) return new int[0];
+            int[] refs = new int[items.size()];
+            for(int i=0;i<refs.length;i++){
+                refs[i] = add(items.get(i));
+            }
+            return refs;
+        }
+
+        /**
+         * @return blob index + 1 of given stack, 0 for empty slots
+         */
+        private int add(ItemStack item){
+            if(isEmpty(item)) return 0;
+            byte[] bytes = item.serializeAsBytes();
+            Integer ref = index.get(ByteBuffer.wrap(bytes));
+            if(ref == null){
+                blobs.add(bytes);
+                ref = blobs.size();
+                index.put(ByteBuffer.wrap(bytes),ref);
+            }
+            return ref;
+        }
+    }
+
+    static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(),in.readLong());
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        if(string == null){
+            writeVarInt(out,0);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out,bytes.length+1);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if(length == 0) return null;
+        byte[] bytes = new byte[length-1];
+        in.readFully(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0){
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("VarInt too long");
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0){
+            out.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 70; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("VarLong too long");
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.util.UUID;
+
+/**
+ * In-memory set of every container id that has stored data, so looking up a container that was never saved
+ * doesn't touch the disk. Ids are kept as pairs of longs in an open addressing table, about 32 bytes per id.
+ * Until the startup scan finished every id is reported as possibly stored.
+ */
+public class ContainerIdIndex {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // msb and lsb of slot i are at 2*i and 2*i+1, 0/0 marks an empty slot
+    private long[] table = new long[2*1024];
+    private int size;
+    private volatile boolean ready;
+
+    /**
+     * @return false only if given container definitely has no stored data
+     */
+    public boolean mightContain(UUID containerID){
+        if(!ready) return true;
+        return contains(containerID);
+    }
+
+    public synchronized boolean contains(UUID containerID){
+        long msb = containerID.getMostSignificantBits();
+        long lsb = containerID.getLeastSignificantBits();
+        int mask = table.length/2-1;
+        for(int slot = hash(msb,lsb) & mask;;slot = (slot+1) & mask){
+            long slotMsb = table[2*slot];
+            long slotLsb = table[2*slot+1];
+            if(slotMsb == 0 && slotLsb == 0) return false;
+            if(slotMsb == msb && slotLsb == lsb) return true;
+        }
+    }
+
+    public synchronized void add(UUID containerID){
+        long msb = containerID.getMostSignificantBits();
+        long lsb = containerID.getLeastSignificantBits();
+        if(msb == 0 && lsb == 0) return;
+        if(size+1 > table.length/2*LOAD_FACTOR){
+            resize();
+        }
+        if(insert(table,msb,lsb)){
+            size++;
+        }
+    }
+
+    public synchronized void remove(UUID containerID){
+        long msb = containerID.getMostSignificantBits();
+        long lsb = containerID.getLeastSignificantBits();
+        int mask = table.length/2-1;
+        int slot = hash(msb,lsb) & mask;
+        while (true){
+            long slotMsb = table[2*slot];
+            long slotLsb = table[2*slot+1];
+            if(slotMsb == 0 && slotLsb == 0) return;
+            if(slotMsb == msb && slotLsb == lsb) break;
+            slot = (slot+1) & mask;
+        }
+        // shift following entries of the probe chain back so lookups never stop at the freed slot
+        int free = slot;
+        for(int next = (free+1) & mask;;next = (next+1) & mask){
+            long nextMsb = table[2*next];
+            long nextLsb = table[2*next+1];
+            if(nextMsb == 0 && nextLsb == 0) break;
+            int home = hash(nextMsb,nextLsb) & mask;
+            boolean movable = free <= next ? (home <= free || home > next) : (home <= free && home > next);
+            if(movable){
+                table[2*free] = nextMsb;
+                table[2*free+1] = nextLsb;
+                free = next;
+            }
+        }
+        table[2*free] = 0;
+        table[2*free+1] = 0;
+        size--;
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * Marks the startup scan as done, from now on misses are answered from the index
+     */
+    public void setReady(){
+        this.ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    private void resize(){
+        long[] resized = new long[table.length*2];
+        for(int i=0;i<table.length;i+=2){
+            if(table[i] != 0 || table[i+1] != 0){
+                insert(resized,table[i],table[i+1]);
+            }
+        }
+        table = resized;
+    }
+
+    private static boolean insert(long[] table, long msb, long lsb){
+        int mask = table.length/2-1;
+        for(int slot = hash(msb,lsb) & mask;;slot = (slot+1) & mask){
+            long slotMsb = table[2*slot];
+            long slotLsb = table[2*slot+1];
+            if(slotMsb == msb && slotLsb == lsb) return false;
+            if(slotMsb == 0 && slotLsb == 0){
+                table[2*slot] = msb;
+                table[2*slot+1] = lsb;
+                return true;
+            }
+        }
+    }
+
+    private static int hash(long msb, long lsb){
+        long hash = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,381 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of container changes that are still only held in the cache.
+ * Changes are appended by a dedicated thread that writes everything queued since its last write at once
+ * and syncs the file at most every sync interval. A checkpoint starts a new segment, queues every dirty cached
+ * container for saving and deletes the older segments once those saves went through. Leftover segments are
+ * replayed into the storage on startup. Whatever removes data from the storage directly, like deleting orphaned
+ * containers or dropping expired players, has to be journaled as well or the replay would bring that data back.
+ * <pre>
+ * segment := entry*                                        named &lt;sequence&gt;.log
+ * entry   := int(length) int(crc32) payload                a torn entry ends the segment
+ * payload := byte(1) containerID position playerID varlong(lastLootTime) varint(refills) varint(length) items
+ *          | byte(2) containerID position varint(length) record
+ *          | byte(3) containerID position                   container got deleted
+ * </pre>
+ * Items and records use {@link ContainerCodec}, so the journal is only used on Paper servers.
+ */
+public class ContainerJournal {
+
+    private static final byte PLAYER_ENTRY = 1;
+    private static final byte CONTAINER_ENTRY = 2;
+    private static final byte DELETE_ENTRY = 3;
+
+    private final Lootin plugin;
+    private final File folder;
+    private final long syncInterval;
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long segment;
+
+    private FileChannel channel;
+    private boolean unsynced;
+    private long lastSync;
+
+    /**
+     * @param syncInterval milliseconds between syncs of the journal file
+     */
+    public ContainerJournal(Lootin plugin, File folder, long syncInterval) throws IOException {
+        this.plugin = plugin;
+        this.folder = folder;
+        this.syncInterval = syncInterval;
+        if(!folder.exists()){
+            folder.mkdirs();
+        }
+        List<Long> segments = listSegments(folder);
+        this.segment = segments.isEmpty() ? 1 : segments.get(segments.size()-1)+1;
+        this.channel = open(segment);
+        this.thread = new Thread(this::run,"Lootin Journal");
+        thread.start();
+    }
+
+    public void logPlayer(LootinContainer container, PlayerLootData playerData){
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(byteStream);
+            out.writeByte(PLAYER_ENTRY);
+            ContainerCodec.writeUUID(out,container.getContainerID());
+            writePosition(out,container.getPosition());
+            ContainerCodec.writeUUID(out,playerData.getPlayerID());
+            ContainerCodec.writeVarLong(out,playerData.getLastLootTime());
+            ContainerCodec.writeVarInt(out,playerData.getRefills());
+            byte[] items = ContainerCodec.encodeItems(playerData.peekItems());
+            ContainerCodec.writeVarInt(out,items.length);
+            out.write(items);
+            out.flush();
+            queue.add(byteStream.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Logs the whole container, needed when its structure changed like players being removed
+     */
+    public void logContainer(LootinContainer container){
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(byteStream);
+            out.writeByte(CONTAINER_ENTRY);
+            ContainerCodec.writeUUID(out,container.getContainerID());
+            writePosition(out,container.getPosition());
+            byte[] record = ContainerCodec.encode(container);
+            ContainerCodec.writeVarInt(out,record.length);
+            out.write(record);
+            out.flush();
+            queue.add(byteStream.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Logs that a container got deleted, so older entries of it are not replayed
+     */
+    public void logDelete(UUID containerID, StoragePosition position){
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(byteStream);
+            out.writeByte(DELETE_ENTRY);
+            ContainerCodec.writeUUID(out,containerID);
+            writePosition(out,position);
+            out.flush();
+            queue.add(byteStream.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a new segment and saves every dirty cached container, the older segments are deleted once the write
+     * queue wrote everything that was submitted up to these saves, including earlier saves that failed and wait for
+     * a retry. Only the new segment and the dirty containers are picked up on the calling thread, the saves are
+     * queued and waited for asynchronously.
+     */
+    public void checkpoint(){
+        long closedSegment = segment++;
+        queue.add(new Rotate(segment));
+        // anything changed from here on goes to the new segment
+        List<LootinContainer> dirty = new ArrayList<>();
+        for(LootinContainer container : plugin.cachedContainers.values()){
+            if(container.isDirty()){
+                dirty.add(container);
+            }
+        }
+        ContainerWriteQueue writeQueue = plugin.getWriteQueue();
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            for(LootinContainer container : dirty){
+                StorageConverterUtility.saveAsync(container);
+            }
+            // changes of the closed segments were all submitted before this
+            long sequence = writeQueue.getSequence();
+            writeQueue.runAfterQueued(() -> {
+                if(!writeQueue.hasPendingBefore(sequence)){
+                    queue.add(new DeleteSegments(closedSegment));
+                }
+                else{
+                    plugin.getLogger().warning("Container saves are still failing, keeping journal segments up to "+closedSegment);
+                }
+            });
+        });
+    }
+
+    private void run(){
+        List<Object> batch = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        while (running || !queue.isEmpty()){
+            try {
+                Object first = queue.poll(syncInterval,TimeUnit.MILLISECONDS);
+                if(first != null){
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                for(Object item : batch){
+                    if(item instanceof byte[]){
+                        writeEntry(buffer,(byte[]) item);
+                        continue;
+                    }
+                    writeBuffer(buffer);
+                    if(item instanceof Rotate){
+                        sync();
+                        channel.close();
+                        channel = open(((Rotate) item).segment);
+                    }
+                    else if(item instanceof DeleteSegments){
+                        deleteSegments(((DeleteSegments) item).upTo);
+                    }
+                }
+                batch.clear();
+                writeBuffer(buffer);
+                if(unsynced && System.currentTimeMillis()-lastSync >= syncInterval){
+                    sync();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE,"Failed to write container journal",e);
+                batch.clear();
+                buffer.reset();
+            }
+        }
+    }
+
+    private void writeEntry(ByteArrayOutputStream buffer, byte[] payload){
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(payload.length).putInt((int) crc.getValue());
+        buffer.write(header.array(),0,8);
+        buffer.write(payload,0,payload.length);
+    }
+
+    private void writeBuffer(ByteArrayOutputStream buffer) throws IOException {
+        if(buffer.size() == 0) return;
+        ByteBuffer data = ByteBuffer.wrap(buffer.toByteArray());
+        while (data.hasRemaining()){
+            channel.write(data);
+        }
+        buffer.reset();
+        unsynced = true;
+    }
+
+    private void sync() throws IOException {
+        if(unsynced){
+            channel.force(false);
+            unsynced = false;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    private void deleteSegments(long upTo){
+        for(long id : listSegments(folder)){
+            if(id <= upTo){
+                new File(folder,id+".log").delete();
+            }
+        }
+    }
+
+    private FileChannel open(long id) throws IOException {
+        return FileChannel.open(new File(folder,id+".log").toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Writes everything still queued and stops the journal thread
+     * @param clean whether every change got saved, in which case the journal is deleted
+     */
+    public void shutdown(boolean clean){
+        running = false;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            sync();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if(clean){
+            deleteSegments(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Applies every journal segment left over from an unclean shutdown to the storage and deletes them afterwards
+     * @return number of containers that got restored
+     */
+    public static int replay(File folder, StorageBackend backend) throws IOException {
+        List<Long> segments = listSegments(folder);
+        if(segments.isEmpty()) return 0;
+        Map<UUID,LootinContainer> containers = new LinkedHashMap<>();
+        Map<UUID,StoragePosition> deleted = new LinkedHashMap<>();
+        for(long id : segments){
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(folder,id+".log"))))) {
+                byte[] payload;
+                while ((payload = readEntry(in)) != null){
+                    apply(payload,containers,deleted,backend);
+                }
+            }
+        }
+        for(LootinContainer container : containers.values()){
+            container.markDirty();
+        }
+        backend.saveAll(containers.values());
+        // the delete may not have reached the storage before the crash
+        for(Map.Entry<UUID,StoragePosition> entry : deleted.entrySet()){
+            backend.delete(entry.getKey(),entry.getValue());
+        }
+        for(long id : segments){
+            new File(folder,id+".log").delete();
+        }
+        return containers.size();
+    }
+
+    private static byte[] readEntry(DataInputStream in) throws IOException {
+        int length;
+        int crc;
+        try {
+            length = in.readInt();
+            crc = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if(length <= 0 || length > 64*1024*1024) return null;
+        byte[] payload = new byte[length];
+        try {
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 check = new CRC32();
+        check.update(payload);
+        return (int) check.getValue() == crc ? payload : null;
+    }
+
+    private static void apply(byte[] payload, Map<UUID,LootinContainer> containers, Map<UUID,StoragePosition> deleted, StorageBackend backend) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        UUID containerID = ContainerCodec.readUUID(in);
+        StoragePosition position = readPosition(in);
+        if(type == DELETE_ENTRY){
+            containers.remove(containerID);
+            deleted.put(containerID,position);
+            return;
+        }
+        deleted.remove(containerID);
+        if(type == PLAYER_ENTRY){
+            LootinContainer container = containers.get(containerID);
+            if(container == null){
+                container = backend.load(containerID,position);
+                if(container == null){
+                    container = new LootinContainer(containerID);
+                    container.setPosition(position);
+                }
+                containers.put(containerID,container);
+            }
+            UUID playerID = ContainerCodec.readUUID(in);
+            long lastLootTime = ContainerCodec.readVarLong(in);
+            int refills = ContainerCodec.readVarInt(in);
+            byte[] items = new byte[ContainerCodec.readVarInt(in)];
+            in.readFully(items);
+            container.getPlayerDataMap().put(playerID,new PlayerLootData(playerID,ContainerCodec.decodeItems(items),lastLootTime,refills));
+        }
+        else if(type == CONTAINER_ENTRY){
+            byte[] record = new byte[ContainerCodec.readVarInt(in)];
+            in.readFully(record);
+            LootinContainer container = new LootinContainer(containerID);
+            container.setPosition(position);
+            ContainerCodec.decode(record,container);
+            containers.put(containerID,container);
+        }
+    }
+
+    private static void writePosition(DataOutputStream out, StoragePosition position) throws IOException {
+        ContainerCodec.writeString(out,position != null ? position.serialize() : null);
+    }
+
+    private static StoragePosition readPosition(DataInputStream in) throws IOException {
+        return StoragePosition.deserialize(ContainerCodec.readString(in));
+    }
+
+    private static List<Long> listSegments(File folder){
+        List<Long> segments = new ArrayList<>();
+        String[] names = folder.list((dir, name) -> name.endsWith(".log"));
+        if(names == null) return segments;
+        for(String name : names){
+            try {
+                segments.add(Long.parseLong(name.substring(0,name.length()-4)));
+            } catch (NumberFormatException ignored) {}
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static class Rotate {
+        private final long segment;
+
+        private Rotate(long segment){
+            this.segment = segment;
+        }
+    }
+
+    private static class DeleteSegments {
+        private final long upTo;
+
+        private DeleteSegments(long upTo){
+            this.upTo = upTo;
+        }
+    }
+}
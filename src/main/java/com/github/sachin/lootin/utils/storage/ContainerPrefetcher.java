@@ -0,0 +1,125 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+import com.github.sachin.lootin.utils.LConstants;
+import com.jeff_media.morepersistentdatatypes.DataType;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataHolder;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Loads the containers of freshly loaded chunks into the cache on a background thread,
+ * so the first open of a container doesn't have to wait for disk.
+ * Prefetching is best effort, when the queue is full chunks are skipped and their containers load on first open.
+ */
+public class ContainerPrefetcher {
+
+    private final Lootin plugin;
+    private final ThreadPoolExecutor executor;
+    private final Set<UUID> queued = ConcurrentHashMap.newKeySet();
+    // reads other requests may be waiting for, completed on shutdown so nobody waits forever
+    private final Map<UUID,CompletableFuture<LootinContainer>> inFlight = new ConcurrentHashMap<>();
+
+    public ContainerPrefetcher(Lootin plugin, int capacity){
+        this.plugin = plugin;
+        this.executor = new ThreadPoolExecutor(1,1,0L,TimeUnit.MILLISECONDS,new ArrayBlockingQueue<>(Math.max(1,capacity)),
+                runnable -> {
+                    Thread thread = new Thread(runnable,"Lootin Prefetcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Adds the container id of given holder to the map if it is a lootin container
+     */
+    public static void collect(PersistentDataHolder holder, Map<UUID,StoragePosition> containers){
+        PersistentDataContainer data = holder.getPersistentDataContainer();
+        UUID containerID = data.get(LConstants.STORAGE_DATA_KEY,DataType.UUID);
+        if(containerID == null) return;
+        StoragePosition position = StoragePosition.deserialize(data.get(LConstants.STORAGE_POSITION_KEY,PersistentDataType.STRING));
+        containers.put(containerID,position != null ? position : StoragePosition.of(holder));
+    }
+
+    /**
+     * Queues given containers of a chunk for loading, has to be called on the thread owning that chunk
+     */
+    public void prefetch(Chunk chunk, Map<UUID,StoragePosition> containers){
+        prefetch(containers,publish -> plugin.getScheduler().runTaskLater(plugin,publish,chunk,1));
+    }
+
+    /**
+     * Queues given containers near a location for loading, used by {@link ProximityPrefetcher}
+     */
+    public void prefetch(Location location, Map<UUID,StoragePosition> containers){
+        prefetch(containers,publish -> plugin.getScheduler().runTaskLater(plugin,publish,location,1));
+    }
+
+    /**
+     * @param scheduler runs the task caching the loaded containers on the thread owning them
+     */
+    private void prefetch(Map<UUID,StoragePosition> containers, Consumer<Runnable> scheduler){
+        containers.keySet().removeIf(containerID -> plugin.cachedContainers.containsKey(containerID)
+                || !plugin.getContainerIndex().mightContain(containerID) || !queued.add(containerID));
+        if(containers.isEmpty()) return;
+        try {
+            executor.execute(() -> {
+                queued.removeAll(containers.keySet());
+                // containers opened in the meantime wait for this read instead of reading again
+                Map<UUID,CompletableFuture<LootinContainer>> futures = new HashMap<>();
+                for(UUID containerID : containers.keySet()){
+                    // storage doesn't have the newest data of containers with a save queued yet
+                    if(plugin.getWriteQueue().isPending(containerID)) continue;
+                    CompletableFuture<LootinContainer> future = StorageConverterUtility.beginLoad(containerID);
+                    if(future != null) futures.put(containerID,future);
+                }
+                containers.keySet().retainAll(futures.keySet());
+                inFlight.putAll(futures);
+                Map<UUID,Long> submitCounts = plugin.getWriteQueue().getSubmitCounts(containers.keySet());
+                Map<UUID,LootinContainer> loaded = new HashMap<>();
+                try {
+                    loaded.putAll(plugin.getStorageBackend().loadAll(containers));
+                } catch (Exception e) {
+                    plugin.getLogger().log(Level.WARNING,"Failed to prefetch "+containers.size()+" containers",e);
+                }
+                // a save queued while reading could be newer than what got read
+                plugin.getWriteQueue().removeSubmitted(loaded,submitCounts);
+                for(Map.Entry<UUID,CompletableFuture<LootinContainer>> entry : futures.entrySet()){
+                    inFlight.remove(entry.getKey(),entry.getValue());
+                    StorageConverterUtility.finishLoad(entry.getKey(),entry.getValue(),loaded.get(entry.getKey()));
+                }
+                if(loaded.isEmpty() || !plugin.isEnabled()) return;
+                scheduler.accept(() -> publish(loaded,submitCounts));
+            });
+        } catch (RejectedExecutionException e) {
+            queued.removeAll(containers.keySet());
+        }
+    }
+
+    private void publish(Map<UUID,LootinContainer> loaded, Map<UUID,Long> submitCounts){
+        plugin.getWriteQueue().removeSubmitted(loaded,submitCounts);
+        for(LootinContainer container : loaded.values()){
+            // containers that got cached since then, for example by a request that waited for this read, are kept
+            if(StorageConverterUtility.cacheLoaded(container) == container){
+                StorageStats.recordLoad();
+                StorageStats.recordPrefetch();
+            }
+        }
+    }
+
+    public void shutdown(){
+        // not interrupting the running read, an interrupt would close the region file channel it reads from
+        executor.getQueue().clear();
+        executor.shutdown();
+        queued.clear();
+        inFlight.forEach((containerID,future) -> StorageConverterUtility.finishLoad(containerID,future,null));
+        inFlight.clear();
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import static com.github.sachin.lootin.utils.storage.StorageTransferTool.*;
+
+/**
+ * Streams every stored container to or from an NDJSON file, used by /lootin export and /lootin import.
+ * Containers are handled one at a time straight from the storage backend and never enter the container cache,
+ * so memory use does not grow with the number of stored containers. Has to run off the server thread.
+ * The file format is described in {@link StorageTransferTool}.
+ */
+public class ContainerTransfer {
+
+    private static final int IMPORT_BATCH_SIZE = 256;
+
+    private final Lootin plugin;
+    private final StorageBackend backend;
+    private final boolean binaryItems;
+
+    public ContainerTransfer(Lootin plugin, StorageBackend backend){
+        this.plugin = plugin;
+        this.backend = backend;
+        this.binaryItems = plugin.isRunningPaper;
+    }
+
+    /**
+     * @param progress receives a progress line every few seconds and the summary at the end
+     * @return number of exported containers
+     */
+    public long exportTo(File file, Consumer<String> progress) throws IOException {
+        Progress counter = new Progress("Exported");
+        file.getParentFile().mkdirs();
+        try (BufferedWriter writer = openWriter(file)) {
+            JsonWriter out = newLineWriter(writer);
+            IOException[] failure = new IOException[1];
+            backend.loadEach(container -> {
+                if(failure[0] != null) return;
+                try {
+                    write(out,container);
+                    writer.newLine();
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return;
+                }
+                String line = counter.increment();
+                if(line != null) progress.accept(line);
+            });
+            if(failure[0] != null) throw failure[0];
+        }
+        progress.accept(counter.summary());
+        return counter.getCount();
+    }
+
+    void write(JsonWriter out, LootinContainer container) throws IOException {
+        out.beginObject();
+        out.name(ID).value(container.getContainerID().toString());
+        StoragePosition position = container.getPosition();
+        if(position != null){
+            out.name(WORLD).value(position.getWorld());
+            out.name(CHUNK_X).value(position.getChunkX());
+            out.name(CHUNK_Z).value(position.getChunkZ());
+        }
+        out.name(BLOCK_CONTAINER).value(container.isBlockContainer());
+        if(container.getLoottable() != null){
+            out.name(LOOTTABLE).value(container.getLoottable());
+        }
+        out.name(ITEM_FORMAT).value(binaryItems ? FORMAT_PAPER : FORMAT_BUKKIT);
+        if(container.getDefaultLoot() != null){
+            out.name(DEFAULT_LOOT).value(encodeItems(container.getDefaultLoot()));
+        }
+        out.name(PLAYERS).beginArray();
+        for(PlayerLootData playerData : container.getPlayerDataMap().values()){
+            out.beginObject();
+            out.name(ID).value(playerData.getPlayerID().toString());
+            out.name(LAST_LOOT_TIME).value(playerData.getLastLootTime());
+            out.name(REFILLS).value(playerData.getRefills());
+            if(playerData.peekItems() != null){
+                out.name(ITEMS).value(encodeItems(playerData.peekItems()));
+            }
+            out.endObject();
+        }
+        out.endArray();
+        out.endObject();
+        out.flush();
+    }
+
+    /**
+     * Writes a line recording that given container got deleted, only used in snapshots
+     */
+    void writeDeleted(JsonWriter out, UUID containerID, StoragePosition position) throws IOException {
+        out.beginObject();
+        out.name(ID).value(containerID.toString());
+        if(position != null){
+            out.name(WORLD).value(position.getWorld());
+            out.name(CHUNK_X).value(position.getChunkX());
+            out.name(CHUNK_Z).value(position.getChunkZ());
+        }
+        out.name(DELETED).value(true);
+        out.endObject();
+        out.flush();
+    }
+
+    /**
+     * Writes every container of given file to storage, replacing stored containers with the same id.
+     * Batches are saved on the storage writer thread so they are ordered with regular saves, reading
+     * waits while the writer is busy. Lines that cannot be read are logged and skipped.
+     * @param progress receives a progress line every few seconds and the summary at the end
+     * @return number of imported containers
+     */
+    public long importFrom(File file, ContainerWriteQueue writeQueue, ContainerIdIndex containerIndex, Consumer<String> progress) throws IOException {
+        Progress counter = new Progress("Imported");
+        AtomicLong failed = new AtomicLong();
+        List<LootinContainer> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+        try (BufferedReader in = openReader(file)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null){
+                lineNumber++;
+                if(line.trim().isEmpty()) continue;
+                try {
+                    LootinContainer container = read(JsonParser.parseString(line).getAsJsonObject());
+                    if(container == null) continue;
+                    batch.add(container);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    plugin.getLogger().log(Level.WARNING,"Skipping line "+lineNumber+" of "+file.getName()+": "+e.getMessage());
+                    continue;
+                }
+                String report = counter.increment();
+                if(batch.size() == IMPORT_BATCH_SIZE){
+                    saveBatch(batch,writeQueue,containerIndex,failed);
+                    batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+                }
+                if(report != null) progress.accept(report);
+            }
+        }
+        saveBatch(batch,writeQueue,containerIndex,failed);
+        writeQueue.runAfterQueued(() -> progress.accept(counter.summary()+(failed.get() > 0 ? ", "+failed.get()+" failed (see console)" : "")));
+        return counter.getCount();
+    }
+
+    private void saveBatch(List<LootinContainer> batch, ContainerWriteQueue writeQueue, ContainerIdIndex containerIndex, AtomicLong failed){
+        if(batch.isEmpty()) return;
+        writeQueue.runAfterQueued(() -> {
+            try {
+                backend.saveAll(batch);
+                for(LootinContainer container : batch){
+                    containerIndex.add(container.getContainerID());
+                    StorageConverterUtility.recordSave(container);
+                }
+            } catch (IOException e) {
+                failed.addAndGet(batch.size());
+                plugin.getLogger().log(Level.SEVERE,"Could not import "+batch.size()+" containers",e);
+            }
+        });
+    }
+
+    /**
+     * @return the container of given line, or null if the line records a deleted container
+     */
+    LootinContainer read(JsonObject json) throws IOException {
+        if(json.has(DELETED)) return null;
+        String format = json.get(ITEM_FORMAT).getAsString();
+        if(!format.equals(binaryItems ? FORMAT_PAPER : FORMAT_BUKKIT)){
+            throw new IOException("Items were exported in the "+format+" format which this server cannot read");
+        }
+        LootinContainer container = new LootinContainer(UUID.fromString(json.get(ID).getAsString()));
+        if(json.has(WORLD)){
+            container.setPosition(new StoragePosition(json.get(WORLD).getAsString(),json.get(CHUNK_X).getAsInt(),json.get(CHUNK_Z).getAsInt()));
+        }
+        container.setBlockContainer(json.has(BLOCK_CONTAINER) && json.get(BLOCK_CONTAINER).getAsBoolean());
+        if(json.has(LOOTTABLE)){
+            container.setLoottable(json.get(LOOTTABLE).getAsString());
+        }
+        if(json.has(DEFAULT_LOOT)){
+            container.setDefaultLoot(decodeItems(json.get(DEFAULT_LOOT).getAsString()));
+        }
+        if(json.has(PLAYERS)){
+            for(JsonElement element : json.getAsJsonArray(PLAYERS)){
+                JsonObject player = element.getAsJsonObject();
+                UUID playerID = UUID.fromString(player.get(ID).getAsString());
+                List<ItemStack> items = player.has(ITEMS) ? decodeItems(player.get(ITEMS).getAsString()) : null;
+                container.getPlayerDataMap().put(playerID,new PlayerLootData(playerID,items,player.get(LAST_LOOT_TIME).getAsLong(),player.get(REFILLS).getAsInt()));
+            }
+        }
+        container.markDirty();
+        return container;
+    }
+
+    private String encodeItems(List<ItemStack> items) throws IOException {
+        if(binaryItems){
+            return Base64.getEncoder().encodeToString(ContainerCodec.encodeItems(items));
+        }
+        return ItemSerializer.serialize(items);
+    }
+
+    private List<ItemStack> decodeItems(String data) throws IOException {
+        if(binaryItems){
+            return ContainerCodec.decodeItems(Base64.getDecoder().decode(data));
+        }
+        List<ItemStack> items = ItemSerializer.deserialize(data);
+        if(items == null) throw new IOException("Could not deserialize items");
+        return items;
+    }
+}
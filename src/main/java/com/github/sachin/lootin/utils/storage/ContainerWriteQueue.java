@@ -0,0 +1,291 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Write-behind pipeline for container saves.
+ * The server thread only takes a snapshot of the container, serialization, compression and file writes
+ * happen on a single dedicated I/O thread. A container has at most one write queued, saving it again before
+ * that write ran only replaces the snapshot. When the queue is full the container is set aside and written
+ * by the I/O thread once it catches up. Only once as many containers are set aside as fit in the queue the
+ * thread submitting a container writes it itself, which slows saves down to the speed of the disk.
+ * A snapshot that failed to save stays pending and is retried with a growing delay.
+ * Writes are synced to disk once the queue runs empty rather than one by one, the journal covers the ones in between.
+ */
+public class ContainerWriteQueue {
+
+    private static final long MAX_RETRY_DELAY = 60000;
+    private static final int SUBMIT_STRIPES = 1024;
+
+    private final Lootin plugin;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService retryExecutor;
+    private final Map<UUID,LootinContainer> pending = new ConcurrentHashMap<>();
+    // sequence number of the oldest submit each pending snapshot holds changes of, only changed while computing pending
+    private final Map<UUID,Long> pendingSince = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    // containers that have a write in the queue or in overflow
+    private final Set<UUID> scheduled = ConcurrentHashMap.newKeySet();
+    // containers that did not fit in the queue
+    private final Queue<UUID> overflow = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger overflowSize = new AtomicInteger();
+    private final int maxOverflow;
+    private final Map<UUID,Integer> failedAttempts = new ConcurrentHashMap<>();
+    private final Runnable drainOverflow = this::drainOverflow;
+    // submits counted per stripe of container ids, so readers only discard the containers that could have been saved
+    private final AtomicLongArray submitCounts = new AtomicLongArray(SUBMIT_STRIPES);
+
+    public ContainerWriteQueue(Lootin plugin, int capacity){
+        this.plugin = plugin;
+        this.maxOverflow = Math.max(1,capacity);
+        this.executor = new ThreadPoolExecutor(1,1,0L,TimeUnit.MILLISECONDS,new ArrayBlockingQueue<>(Math.max(1,capacity)),
+                runnable -> {
+                    Thread thread = new Thread(runnable,"Lootin Storage Writer");
+                    thread.setDaemon(false);
+                    return thread;
+                },
+                (task,pool) -> {
+                    // a rejected drain is not needed, the queue is full of tasks that drain after their write
+                    if(!(task instanceof FlushTask)) return;
+                    UUID containerID = ((FlushTask) task).containerID;
+                    if(overflowSize.incrementAndGet() > maxOverflow){
+                        overflowSize.decrementAndGet();
+                        flush(containerID);
+                        return;
+                    }
+                    overflow.add(containerID);
+                    // the queued tasks drain the overflow, if they all ran in the meantime nothing else would
+                    if(pool.getQueue().isEmpty()){
+                        pool.execute(drainOverflow);
+                    }
+                });
+        // runAfterQueued hands tasks straight to the queue, which needs the writer thread to be running already
+        executor.prestartAllCoreThreads();
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable,"Lootin Storage Retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a snapshot of given container to be written off the server thread
+     */
+    public void submit(LootinContainer container){
+        UUID containerID = container.getContainerID();
+        submitCounts.incrementAndGet(stripe(containerID));
+        // changes made between the snapshot and markClean would otherwise never be saved
+        synchronized (container){
+            LootinContainer snapshot = container.snapshot();
+            long submitted = sequence.getAndIncrement();
+            pending.compute(containerID,(id,superseded) -> {
+                if(superseded != null){
+                    snapshot.mergeDirty(superseded);
+                }
+                else{
+                    pendingSince.put(id,submitted);
+                }
+                return snapshot;
+            });
+            container.markClean();
+        }
+        schedule(containerID);
+    }
+
+    private void schedule(UUID containerID){
+        if(executor.isShutdown()){
+            flush(containerID);
+            return;
+        }
+        // the queued write picks up the newest snapshot
+        if(!scheduled.add(containerID)) return;
+        executor.execute(new FlushTask(containerID));
+    }
+
+    /**
+     * @return a copy of the newest snapshot still waiting to be written, or null if there is none
+     */
+    public LootinContainer getPending(UUID containerID){
+        LootinContainer snapshot = pending.get(containerID);
+        return snapshot != null ? snapshot.snapshot() : null;
+    }
+
+    /**
+     * @return true if a snapshot of given container is still waiting to be written
+     */
+    public boolean isPending(UUID containerID){
+        return pending.containsKey(containerID);
+    }
+
+    /**
+     * @return a count that changes whenever given container is submitted, lets readers detect saves of it that
+     * happened while they were reading. Containers share counts, so a few others change it as well.
+     */
+    public long getSubmitCount(UUID containerID){
+        return submitCounts.get(stripe(containerID));
+    }
+
+    /**
+     * @return the submit count of each of given containers, see {@link #getSubmitCount(UUID)}
+     */
+    public Map<UUID,Long> getSubmitCounts(Collection<UUID> containerIDs){
+        Map<UUID,Long> counts = new HashMap<>();
+        for(UUID containerID : containerIDs){
+            counts.put(containerID,getSubmitCount(containerID));
+        }
+        return counts;
+    }
+
+    /**
+     * Drops the containers that were submitted since given counts were taken, what got read of them could be older than their save
+     */
+    public void removeSubmitted(Map<UUID,LootinContainer> loaded, Map<UUID,Long> submitCounts){
+        loaded.keySet().removeIf(containerID -> !submitCounts.containsKey(containerID) || getSubmitCount(containerID) != submitCounts.get(containerID));
+    }
+
+    private static int stripe(UUID containerID){
+        return ContainerCache.FrequencySketch.spread(containerID) & (SUBMIT_STRIPES-1);
+    }
+
+    /**
+     * @return sequence number the next submit gets, submits so far all got a lower one
+     */
+    public long getSequence(){
+        return sequence.get();
+    }
+
+    /**
+     * @return true if a container submitted before given sequence number is not written yet, because its write is
+     * still queued or failed and waits for a retry
+     */
+    public boolean hasPendingBefore(long sequence){
+        for(long submitted : pendingSince.values()){
+            if(submitted < sequence) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs given task on the writer thread once every container queued before it got written and synced, failed writes
+     * that are waiting for a retry excluded. Waits for room in the queue, so it must not be called on the server thread.
+     */
+    public void runAfterQueued(Runnable task){
+        if(executor.isShutdown()){
+            task.run();
+            return;
+        }
+        try {
+            executor.getQueue().put(() -> {
+                drainOverflow();
+                // the task may rely on everything queued before it being on disk
+                syncBackend();
+                task.run();
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueuedCount(){
+        return pending.size();
+    }
+
+    private void drainOverflow(){
+        UUID containerID;
+        while((containerID = overflow.poll()) != null){
+            overflowSize.decrementAndGet();
+            flush(containerID);
+        }
+    }
+
+    private void syncBackend(){
+        try {
+            plugin.getStorageBackend().sync();
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE,"Failed to sync container storage",e);
+        }
+    }
+
+    private void flush(UUID containerID){
+        // submits from here on queue a new write
+        scheduled.remove(containerID);
+        LootinContainer snapshot = pending.get(containerID);
+        // a newer snapshot already got written by an earlier task
+        if(snapshot == null) return;
+        try {
+            StorageConverterUtility.save(snapshot);
+        } catch (Exception e) {
+            int attempts = failedAttempts.merge(containerID,1,Integer::sum);
+            if(attempts == 1){
+                plugin.getLogger().log(Level.SEVERE,"Failed to save container "+containerID+", retrying",e);
+            }
+            else{
+                plugin.getLogger().warning("Saving container "+containerID+" failed again ("+attempts+" attempts): "+e.getMessage());
+            }
+            // the snapshot stays pending, reads keep seeing it and later saves merge into it
+            if(!retryExecutor.isShutdown()){
+                long delay = Math.min(MAX_RETRY_DELAY,1000L << Math.min(attempts-1,6));
+                retryExecutor.schedule(() -> {
+                    if(pending.containsKey(containerID)) schedule(containerID);
+                },delay,TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        failedAttempts.remove(containerID);
+        pending.computeIfPresent(containerID,(id,current) -> {
+            // a newer snapshot holds the changes of this one as well, it stays pending since the same submit
+            if(current != snapshot) return current;
+            pendingSince.remove(id);
+            return null;
+        });
+    }
+
+    /**
+     * Stops accepting new work and waits for every queued container to be written
+     */
+    public void shutdown(){
+        retryExecutor.shutdownNow();
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(60,TimeUnit.SECONDS)){
+                plugin.getLogger().warning("Timed out waiting for "+pending.size()+" container saves, writing them on the main thread");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for(UUID containerID : pending.keySet()){
+            flush(containerID);
+        }
+        syncBackend();
+        if(!pending.isEmpty()){
+            plugin.getLogger().severe("Could not save "+pending.size()+" containers, their latest changes are lost");
+        }
+    }
+
+    private class FlushTask implements Runnable {
+
+        private final UUID containerID;
+
+        private FlushTask(UUID containerID){
+            this.containerID = containerID;
+        }
+
+        @Override
+        public void run() {
+            flush(containerID);
+            drainOverflow();
+            if(executor.getQueue().isEmpty()){
+                syncBackend();
+            }
+        }
+    }
+}
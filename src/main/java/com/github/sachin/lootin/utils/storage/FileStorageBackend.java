@@ -0,0 +1,413 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores containers in region files inside the data folder, containers without a known position
+ * (or whose region is full) are stored as one file per container uuid in data/ab/cd/&lt;uuid&gt;.
+ */
+public class FileStorageBackend implements StorageBackend {
+
+    private static final int PAGE_SIZE = 256;
+
+    private final File dataFolder;
+    private final RegionFileCache regionFiles;
+    private final boolean binary;
+    private final RecordCompressor compressor;
+
+    /**
+     * @param binary whether to write records with {@link ContainerCodec}, requires Paper
+     * @param compressor compresses binary records, yaml records are always gzipped
+     */
+    public FileStorageBackend(File dataFolder, boolean binary, RecordCompressor compressor){
+        this.dataFolder = dataFolder;
+        this.regionFiles = new RegionFileCache(new File(dataFolder,"regions"));
+        this.binary = binary;
+        this.compressor = compressor;
+    }
+
+    @Override
+    public LootinContainer load(UUID containerID, StoragePosition position) throws IOException {
+        LootinContainer container = new LootinContainer(containerID);
+        container.setPosition(position);
+        RecordBuffer buffer = RecordBuffer.get();
+        // only inflating happens while the region is locked, items are decoded afterwards
+        Short flags = position != null ? regionFiles.read(position,containerID,(record, recordFlags) -> {
+            readRecord(record,buffer);
+            return recordFlags;
+        }) : null;
+        if(flags != null){
+            container.setBlockContainer((flags & RegionFile.FLAG_BLOCK_CONTAINER) != 0);
+        }
+        else{
+            File file = getContainerFile(containerID);
+            if(file.exists()){
+                container.setFlatFile(true);
+            }
+            else{
+                // written before files were spread over sub folders, moved once the container is saved again
+                file = new File(dataFolder,containerID.toString());
+                if(!file.exists()) return null;
+                container.setLegacyFile(true);
+            }
+            readRecord(readFromFile(file,buffer),buffer);
+        }
+        decode(buffer.array(),buffer.length(),container);
+        if(!container.isLegacyFile() && ContainerCodec.isBinary(buffer.array(),buffer.length()) == binary){
+            container.markClean();
+        }
+        else{
+            // old records get rewritten in the current format on eviction
+            container.markDirty();
+        }
+        return container;
+    }
+
+    /**
+     * Puts the uncompressed content of given record into the thread's record buffer
+     */
+    private void readRecord(ByteBuffer record, RecordBuffer buffer) throws IOException {
+        if(RecordCompressor.isCompressed(record)){
+            compressor.decompress(record,buffer);
+        }
+        else{
+            buffer.copyFrom(record);
+        }
+    }
+
+    /**
+     * Reads a record the way it was done before the mapped read path, only kept for {@link StorageBenchmark}
+     * @return length of the uncompressed record, -1 if it is not stored
+     */
+    int readRecordToHeap(UUID containerID, StoragePosition position) throws IOException {
+        byte[] data = position != null ? regionFiles.read(position,containerID) : null;
+        if(data == null){
+            File file = getContainerFile(containerID);
+            if(!file.exists()) return -1;
+            try (FileInputStream fileInputStream = new FileInputStream(file)) {
+                data = new byte[fileInputStream.available()];
+                fileInputStream.read(data);
+            }
+        }
+        if(RecordCompressor.isCompressed(data)){
+            data = compressor.decompress(data);
+        }
+        return data.length;
+    }
+
+    /**
+     * Reads a record the way {@link #load(UUID, StoragePosition)} does, without decoding it
+     * @return length of the uncompressed record, -1 if it is not stored
+     */
+    int readRecordMapped(UUID containerID, StoragePosition position) throws IOException {
+        RecordBuffer buffer = RecordBuffer.get();
+        Short flags = position != null ? regionFiles.read(position,containerID,(record, recordFlags) -> {
+            readRecord(record,buffer);
+            return recordFlags;
+        }) : null;
+        if(flags == null){
+            File file = getContainerFile(containerID);
+            if(!file.exists()) return -1;
+            readRecord(readFromFile(file,buffer),buffer);
+        }
+        return buffer.length();
+    }
+
+    @Override
+    public void save(LootinContainer container) throws IOException {
+        byte[] data = encode(container);
+        UUID containerID = container.getContainerID();
+        StoragePosition position = container.getPosition();
+        short flags = container.isBlockContainer() ? RegionFile.FLAG_BLOCK_CONTAINER : 0;
+        if(position != null && regionFiles.write(position,containerID,flags,data)){
+            if(container.isFlatFile()){
+                getContainerFile(containerID).delete();
+                container.setFlatFile(false);
+            }
+            if(container.isLegacyFile()){
+                new File(dataFolder,containerID.toString()).delete();
+                container.setLegacyFile(false);
+            }
+            return;
+        }
+        File file = getContainerFile(containerID);
+        file.getParentFile().mkdirs();
+        writeToFile(data,file);
+        container.setFlatFile(true);
+        if(container.isLegacyFile()){
+            new File(dataFolder,containerID.toString()).delete();
+            container.setLegacyFile(false);
+        }
+    }
+
+    @Override
+    public long delete(UUID containerID, StoragePosition position) throws IOException {
+        long reclaimed = 0;
+        if(position != null){
+            reclaimed = regionFiles.delete(position,containerID);
+        }
+        for(File file : new File[]{getContainerFile(containerID),new File(dataFolder,containerID.toString())}){
+            if(file.exists()){
+                reclaimed += file.length();
+                file.delete();
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Only containers in region files are returned, flat files never had their holder type recorded
+     */
+    @Override
+    public Set<UUID> getBlockContainerIDs(StoragePosition chunk) throws IOException {
+        return regionFiles.getContainerIDs(chunk,RegionFile.FLAG_BLOCK_CONTAINER);
+    }
+
+    @Override
+    public void forEachContainerID(Consumer<UUID> consumer) throws IOException {
+        for(File file : regionFiles.listRegionFiles()){
+            regionFiles.getContainerIDs(file).forEach(consumer);
+        }
+        forEachLegacyFile(consumer);
+    }
+
+    @Override
+    public void forEachContainer(BiConsumer<UUID,StoragePosition> consumer) throws IOException {
+        for(File file : regionFiles.listRegionFiles()){
+            regionFiles.getContainerPositions(file).forEach(consumer);
+        }
+        forEachLegacyFile(containerID -> consumer.accept(containerID,null));
+    }
+
+    @Override
+    public void loadEach(Consumer<LootinContainer> consumer) throws IOException {
+        for(File file : regionFiles.listRegionFiles()){
+            for(Map.Entry<UUID,StoragePosition> entry : regionFiles.getContainerPositions(file).entrySet()){
+                LootinContainer container = load(entry.getKey(),entry.getValue());
+                if(container != null) consumer.accept(container);
+            }
+        }
+        // flat files are loaded in pages as they are listed, there can be millions of them
+        List<UUID> page = new ArrayList<>(PAGE_SIZE);
+        try {
+            forEachLegacyFile(containerID -> {
+                page.add(containerID);
+                if(page.size() >= PAGE_SIZE){
+                    loadPage(page,consumer);
+                }
+            });
+            loadPage(page,consumer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void loadPage(List<UUID> page, Consumer<LootinContainer> consumer){
+        for(UUID containerID : page){
+            try {
+                LootinContainer container = load(containerID,null);
+                if(container != null) consumer.accept(container);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        page.clear();
+    }
+
+    /**
+     * Lists the containers stored in their own file, streaming the folders instead of reading every name at once
+     */
+    private void forEachLegacyFile(Consumer<UUID> consumer) throws IOException {
+        if(!dataFolder.isDirectory()) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dataFolder.toPath())) {
+            for(Path file : files){
+                String name = file.getFileName().toString();
+                if(StorageConverterUtility.isValidUUID(name)){
+                    consumer.accept(UUID.fromString(name));
+                }
+                else if(isShardFolder(file.toFile())){
+                    try (DirectoryStream<Path> shards = Files.newDirectoryStream(file,shard -> isShardFolder(shard.toFile()))) {
+                        for(Path shard : shards){
+                            try (DirectoryStream<Path> entries = Files.newDirectoryStream(shard)) {
+                                for(Path entry : entries){
+                                    String entryName = entry.getFileName().toString();
+                                    if(StorageConverterUtility.isValidUUID(entryName)){
+                                        consumer.accept(UUID.fromString(entryName));
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the file of a container that is not stored in a region, spread over two levels of sub folders
+     * named after the first hex digits of its id so no folder gets too many entries
+     */
+    public File getContainerFile(UUID containerID){
+        String name = containerID.toString();
+        return new File(new File(new File(dataFolder,name.substring(0,2)),name.substring(2,4)),name);
+    }
+
+    private static boolean isShardFolder(File file){
+        String name = file.getName();
+        return name.length() == 2 && Character.digit(name.charAt(0),16) != -1 && Character.digit(name.charAt(1),16) != -1 && file.isDirectory();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        regionFiles.syncAll();
+    }
+
+    @Override
+    public void close() {
+        regionFiles.closeAll();
+    }
+
+    /**
+     * Serializes a container into a storage record, using the binary {@link ContainerCodec} on Paper
+     * and gzipped yaml on other servers
+     */
+    public byte[] encode(LootinContainer container) throws IOException {
+        if(binary){
+            return compressor.compress(ContainerCodec.encode(container));
+        }
+        YamlConfiguration yaml = new YamlConfiguration();
+        for(UUID key : container.getPlayerDataMap().keySet()){
+            PlayerLootData playerData = container.getPlayerDataMap().get(key);
+            yaml.set(key.toString()+".items",playerData.peekItems());
+            yaml.set(key.toString()+".last-loot-time",playerData.getLastLootTime());
+            yaml.set(key.toString()+".refills",playerData.getRefills());
+        }
+        return compress(yaml.saveToString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads an uncompressed storage record into given container, old gzipped yaml records are still understood
+     */
+    public void decode(byte[] data, LootinContainer container) throws IOException {
+        decode(data,data.length,container);
+    }
+
+    /**
+     * Reads the first length bytes of given array, see {@link #decode(byte[], LootinContainer)}
+     */
+    public void decode(byte[] data, int length, LootinContainer container) throws IOException {
+        if(ContainerCodec.isBinary(data,length)){
+            ContainerCodec.decode(data,length,container);
+            return;
+        }
+        byte[] record = length == data.length ? data : Arrays.copyOf(data,length);
+        YamlConfiguration yaml = YamlConfiguration.loadConfiguration(new StringReader(new String(decompress(record),StandardCharsets.UTF_8)));
+        for(String key : yaml.getKeys(false)){
+            UUID uuid = UUID.fromString(key);
+            PlayerLootData playerData = new PlayerLootData(uuid);
+            if(yaml.isList(key)){
+                playerData.setItems((List<ItemStack>) yaml.getList(key));
+                playerData.setLastLootTime(System.currentTimeMillis());
+                playerData.setRefills(0);
+            }
+            else if(yaml.isConfigurationSection(key)){
+                ConfigurationSection subConfig = yaml.getConfigurationSection(key);
+                playerData.setItems((List<ItemStack>) subConfig.getList("items"));
+                playerData.setLastLootTime(subConfig.getLong("last-loot-time"));
+                playerData.setRefills(subConfig.getInt("refills"));
+            }
+            container.getPlayerDataMap().put(uuid,playerData);
+        }
+    }
+
+    /**
+     * Collects up to max uncompressed binary records from randomly picked region files
+     */
+    public List<byte[]> sampleRecords(int max) throws IOException {
+        List<File> files = regionFiles.listRegionFiles();
+        Collections.shuffle(files);
+        List<byte[]> samples = new ArrayList<>();
+        // a few records per region keeps the sample spread over many areas
+        int perFile = Math.max(16,max/Math.max(1,files.size()));
+        for(File file : files){
+            if(samples.size() >= max) break;
+            for(byte[] data : regionFiles.readAll(file,Math.min(perFile,max-samples.size()))){
+                if(RecordCompressor.isCompressed(data)){
+                    data = compressor.decompress(data);
+                }
+                if(ContainerCodec.isBinary(data)){
+                    samples.add(data);
+                }
+            }
+        }
+        return samples;
+    }
+
+    public RecordCompressor getCompressor() {
+        return compressor;
+    }
+
+    static byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream)) {
+            gzipStream.write(data);
+        }
+        return byteStream.toByteArray();
+    }
+
+    static byte[] decompress(byte[] compressedData) throws IOException {
+        ByteArrayInputStream byteStream = new ByteArrayInputStream(compressedData);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        try (GZIPInputStream gzipStream = new GZIPInputStream(byteStream)) {
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = gzipStream.read(buffer)) > 0) {
+                outStream.write(buffer, 0, len);
+            }
+        }
+        return outStream.toByteArray();
+    }
+
+    private static void writeToFile(byte[] data,File file) throws IOException {
+        if(!file.exists()) file.createNewFile();
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
+            fileOutputStream.write(data);
+        }
+    }
+
+    /**
+     * Reads the whole file into the thread's direct file buffer
+     */
+    private static ByteBuffer readFromFile(File file, RecordBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ)) {
+            ByteBuffer data = buffer.fileBuffer((int) channel.size());
+            while (data.hasRemaining()){
+                if(channel.read(data) == -1) break;
+            }
+            data.flip();
+            return data;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+import com.github.sachin.lootin.compat.scheduler.Task;
+import com.github.sachin.lootin.loot.RegionScanner;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Barrel;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Chest;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.minecart.StorageMinecart;
+import org.bukkit.persistence.PersistentDataHolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Converts every container of a world that still stores its loot the old way in its NBT, started by /lootin migrate.
+ * The chunks to check are read from the headers of the world's region files, each chunk is then loaded and
+ * converted on the thread owning it with at most a configured number of chunks in flight per tick, so on Folia
+ * separate regions are migrated in parallel. On Paper chunks are loaded asynchronously and converted once loaded. Finished region files are recorded in data/migration/&lt;world&gt;.txt,
+ * a migration stopped by a restart continues with the regions that are left. If the world was scanned with
+ * {@link RegionScanner} only the chunks it found legacy containers in are loaded.
+ * Minecarts are only converted when their entities are loaded together with the chunk, any that are missed are
+ * still converted once they get opened.
+ */
+public class LegacyMigration {
+
+    private static final String DONE = "done";
+
+    private final Lootin plugin;
+    private final World world;
+    private final File progressFile;
+    private final int chunksPerTick;
+    private final CommandSender sender;
+
+    private final Queue<PendingChunk> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong checkedChunks = new AtomicLong();
+    private final AtomicLong migratedContainers = new AtomicLong();
+    private volatile int totalChunks = -1;
+    private volatile boolean stopped;
+    private Task task;
+    // worlds to migrate once this one is done
+    private List<World> nextWorlds = Collections.emptyList();
+
+    /**
+     * @param sender gets told once the migration finished, can be null
+     */
+    public LegacyMigration(Lootin plugin, World world, int chunksPerTick, CommandSender sender){
+        this.plugin = plugin;
+        this.world = world;
+        this.progressFile = getProgressFile(world.getName());
+        this.chunksPerTick = Math.max(1,chunksPerTick);
+        this.sender = sender;
+    }
+
+    /**
+     * Lists the chunks of the regions that are not finished yet in the background and starts converting them
+     */
+    public void start(){
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            try {
+                Set<String> finished = readProgress(progressFile);
+                if(finished.contains(DONE)){
+                    progressFile.delete();
+                    finished.clear();
+                }
+                Set<Long> legacyChunks = readScan();
+                int total = 0;
+                for(File regionFile : listRegionFiles(world)){
+                    if(finished.contains(regionFile.getName())) continue;
+                    List<int[]> regionChunks = listChunks(regionFile);
+                    if(legacyChunks != null){
+                        regionChunks.removeIf(chunk -> !legacyChunks.contains(chunkKey(chunk[0],chunk[1])));
+                    }
+                    if(regionChunks.isEmpty()){
+                        finishRegion(regionFile.getName());
+                        continue;
+                    }
+                    AtomicInteger remaining = new AtomicInteger(regionChunks.size());
+                    for(int[] chunk : regionChunks){
+                        chunks.add(new PendingChunk(regionFile.getName(),chunk[0],chunk[1],remaining));
+                    }
+                    total += regionChunks.size();
+                }
+                totalChunks = total;
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE,"Could not list the chunks of "+world.getName()+" for migration",e);
+                stopped = true;
+                return;
+            }
+            if(!stopped && plugin.isEnabled()){
+                task = plugin.getScheduler().runTaskTimer(plugin,this::tick,1,1);
+            }
+        });
+    }
+
+    private void tick(){
+        if(stopped) return;
+        PendingChunk chunk;
+        while (inFlight.get() < chunksPerTick && (chunk = chunks.poll()) != null){
+            inFlight.incrementAndGet();
+            PendingChunk next = chunk;
+            plugin.getScheduler().runTaskLater(plugin,() -> migrateChunk(next),new Location(world,next.x << 4,0,next.z << 4),1);
+        }
+        if(chunks.isEmpty() && inFlight.get() == 0){
+            finish();
+        }
+    }
+
+    private void migrateChunk(PendingChunk pending){
+        if(stopped){
+            inFlight.decrementAndGet();
+            return;
+        }
+        boolean wasLoaded = world.isChunkLoaded(pending.x,pending.z);
+        if(wasLoaded || !plugin.isRunningPaper){
+            migrateChunk(pending,world.getChunkAt(pending.x,pending.z),wasLoaded);
+            return;
+        }
+        // completes on the thread owning the chunk
+        world.getChunkAtAsync(pending.x,pending.z).whenComplete((chunk, error) -> {
+            if(error != null){
+                plugin.getLogger().log(Level.WARNING,"Could not load chunk "+pending.x+","+pending.z+" of "+world.getName()+" for migration",error);
+                finishChunk(pending);
+                return;
+            }
+            migrateChunk(pending,chunk,false);
+        });
+    }
+
+    private void migrateChunk(PendingChunk pending, Chunk chunk, boolean wasLoaded){
+        try {
+            if(stopped) return;
+            int migrated = 0;
+            for(BlockState state : chunk.getTileEntities()){
+                if((state instanceof Chest || state instanceof Barrel) && StorageConverterUtility.migrateLegacy((PersistentDataHolder) state)){
+                    migrated++;
+                }
+            }
+            for(Entity entity : chunk.getEntities()){
+                if(entity instanceof StorageMinecart && StorageConverterUtility.migrateLegacy(entity)){
+                    migrated++;
+                }
+            }
+            migratedContainers.addAndGet(migrated);
+            if(!wasLoaded){
+                world.unloadChunkRequest(pending.x,pending.z);
+            }
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.WARNING,"Could not migrate chunk "+pending.x+","+pending.z+" of "+world.getName(),e);
+        } finally {
+            finishChunk(pending);
+        }
+    }
+
+    private void finishChunk(PendingChunk pending){
+        if(!stopped){
+            checkedChunks.incrementAndGet();
+            if(pending.remaining.decrementAndGet() == 0){
+                finishRegion(pending.regionFile);
+            }
+        }
+        inFlight.decrementAndGet();
+    }
+
+    private void finish(){
+        stop();
+        finishRegion(DONE);
+        String message = "Migrated "+migratedContainers.get()+" legacy containers in "+checkedChunks.get()+" chunks of "+world.getName();
+        plugin.getLogger().info(message);
+        if(sender instanceof Player){
+            sender.sendMessage(plugin.getPrefix()+message);
+        }
+        if(!nextWorlds.isEmpty() && plugin.isEnabled()){
+            LegacyMigration next = new LegacyMigration(plugin,nextWorlds.get(0),chunksPerTick,sender);
+            next.nextWorlds = nextWorlds.subList(1,nextWorlds.size());
+            plugin.getLogger().info("Resuming migration of legacy containers in "+next.world.getName());
+            plugin.setMigration(next);
+            next.start();
+        }
+    }
+
+    /**
+     * Stops handing out chunks, the regions that were not finished are migrated again on the next start,
+     * as are worlds that were still waiting for this migration
+     */
+    public void stop(){
+        stopped = true;
+        if(task != null){
+            task.cancel();
+        }
+    }
+
+    public boolean isRunning(){
+        return !stopped;
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public long getCheckedChunks() {
+        return checkedChunks.get();
+    }
+
+    /**
+     * @return number of chunks left to check when this migration started, -1 while they are still being listed
+     */
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public long getMigratedContainers() {
+        return migratedContainers.get();
+    }
+
+    /**
+     * @return the chunks that had legacy containers according to the {@link RegionScanner} index
+     * in data/scans/&lt;world&gt;.lsi, or null if the world was not scanned
+     */
+    private Set<Long> readScan(){
+        File scanFile = new File(new File(StorageConverterUtility.getDataFile(),"scans"),world.getName()+".lsi");
+        if(!scanFile.exists()) return null;
+        try {
+            RegionScanner.Index index = RegionScanner.readIndex(scanFile);
+            Set<Long> chunks = new HashSet<>();
+            for(RegionScanner.Entry entry : index.getEntries()){
+                if(entry.hasLegacyLoot()){
+                    chunks.add(chunkKey(entry.getX() >> 4,entry.getZ() >> 4));
+                }
+            }
+            plugin.getLogger().info("Using the scan of "+world.getName()+" from "+new Date(index.getScanTime())+", "+chunks.size()+" chunks have legacy containers");
+            return chunks;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING,"Could not read "+scanFile.getName()+", checking every chunk instead",e);
+            return null;
+        }
+    }
+
+    private static long chunkKey(int x, int z){
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private synchronized void finishRegion(String regionFile){
+        try {
+            progressFile.getParentFile().mkdirs();
+            Files.write(progressFile.toPath(),Collections.singletonList(regionFile),StandardCharsets.UTF_8,StandardOpenOption.CREATE,StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Resumes the migrations that got interrupted by a shutdown, one world after another
+     * @return the migration of the first world or null if there is none
+     */
+    public static LegacyMigration resume(Lootin plugin, int chunksPerTick){
+        File[] files = new File(StorageConverterUtility.getDataFile(),"migration").listFiles((dir, name) -> name.endsWith(".txt"));
+        if(files == null) return null;
+        List<World> worlds = new ArrayList<>();
+        for(File file : files){
+            World world = Bukkit.getWorld(file.getName().substring(0,file.getName().length()-4));
+            try {
+                if(world == null || readProgress(file).contains(DONE)) continue;
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            worlds.add(world);
+        }
+        if(worlds.isEmpty()) return null;
+        plugin.getLogger().info("Resuming migration of legacy containers in "+worlds.get(0).getName()+(worlds.size() > 1 ? ", "+(worlds.size()-1)+" more worlds follow" : ""));
+        LegacyMigration migration = new LegacyMigration(plugin,worlds.get(0),chunksPerTick,null);
+        migration.nextWorlds = worlds.subList(1,worlds.size());
+        migration.start();
+        return migration;
+    }
+
+    static File getProgressFile(String world){
+        return new File(new File(StorageConverterUtility.getDataFile(),"migration"),world+".txt");
+    }
+
+    private static Set<String> readProgress(File file) throws IOException {
+        if(!file.exists()) return new HashSet<>();
+        return new HashSet<>(Files.readAllLines(file.toPath(),StandardCharsets.UTF_8));
+    }
+
+    private static List<File> listRegionFiles(World world){
+        File folder = new File(world.getWorldFolder(),"region");
+        if(world.getEnvironment() == World.Environment.NETHER && new File(world.getWorldFolder(),"DIM-1/region").isDirectory()){
+            folder = new File(world.getWorldFolder(),"DIM-1/region");
+        }
+        else if(world.getEnvironment() == World.Environment.THE_END && new File(world.getWorldFolder(),"DIM1/region").isDirectory()){
+            folder = new File(world.getWorldFolder(),"DIM1/region");
+        }
+        File[] files = folder.listFiles((dir, name) -> name.startsWith("r.") && name.endsWith(".mca"));
+        if(files == null) return new ArrayList<>();
+        List<File> regionFiles = new ArrayList<>(Arrays.asList(files));
+        regionFiles.sort(Comparator.comparing(File::getName));
+        return regionFiles;
+    }
+
+    /**
+     * @return x and z of every chunk stored in given vanilla region file, read from its location table
+     */
+    public static List<int[]> listChunks(File regionFile) throws IOException {
+        List<int[]> chunks = new ArrayList<>();
+        String[] name = regionFile.getName().split("\\.");
+        if(name.length != 4 || regionFile.length() < 4096) return chunks;
+        int regionX = Integer.parseInt(name[1]);
+        int regionZ = Integer.parseInt(name[2]);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(regionFile),4096))) {
+            for(int i=0;i<1024;i++){
+                if(in.readInt() != 0){
+                    chunks.add(new int[]{(regionX << 5)+(i & 31),(regionZ << 5)+(i >> 5)});
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private static class PendingChunk {
+        private final String regionFile;
+        private final int x;
+        private final int z;
+        private final AtomicInteger remaining;
+
+        private PendingChunk(String regionFile, int x, int z, AtomicInteger remaining){
+            this.regionFile = regionFile;
+            this.x = x;
+            this.z = z;
+            this.remaining = remaining;
+        }
+    }
+}
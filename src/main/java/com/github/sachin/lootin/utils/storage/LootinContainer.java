@@ -1,50 +1,68 @@
 package com.github.sachin.lootin.utils.storage;
 
-import com.github.sachin.lootin.Lootin;
-import com.github.sachin.lootin.utils.LConstants;
 import org.bukkit.inventory.ItemStack;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Loot data of one container. Changes to a container and snapshots of it synchronize on the container, so a snapshot
+ * taken on another thread, like the cache sweep on Folia's global region, never sees a half made change.
+ */
 public class LootinContainer{
 
 
     private final UUID containerID;
-    private int closingTimer;
     private String loottable;
+    private StoragePosition position;
+    private boolean legacyFile;
+    private boolean flatFile;
+    private boolean blockContainer;
+    private volatile boolean dirty;
     private List<ItemStack> defaultLoot = new ArrayList<>();
 
-    private final Map<UUID, PlayerLootData> playerDataMap = new HashMap<>();
+    private final Map<UUID, PlayerLootData> playerDataMap = new ConcurrentHashMap<>();
 
 
     public LootinContainer(UUID containerID){
         this.containerID = containerID;
-        resetClosingTimer();
     }
 
     public LootinContainer(UUID containerID,String loottable,List<ItemStack> defaultLoot){
         this.containerID = containerID;
         this.loottable = loottable;
         this.defaultLoot = defaultLoot;
-        resetClosingTimer();
     }
 
 
 
-    public UUID getContainerID() {
-        return containerID;
-    }
-
-    public void setClosingTimer(int closingTimer) {
-        this.closingTimer = closingTimer;
+    /**
+     * @return a deep copy of this container that can be handed to another thread for saving
+     */
+    public synchronized LootinContainer snapshot(){
+        LootinContainer copy = new LootinContainer(containerID,loottable,copyItems(defaultLoot));
+        copy.position = position;
+        copy.legacyFile = legacyFile;
+        copy.flatFile = flatFile;
+        copy.blockContainer = blockContainer;
+        copy.dirty = dirty;
+        for(PlayerLootData playerData : playerDataMap.values()){
+            copy.playerDataMap.put(playerData.getPlayerID(),playerData.snapshot());
+        }
+        return copy;
     }
 
-    public int getClosingTimer() {
-        return closingTimer;
+    static List<ItemStack> copyItems(List<ItemStack> items){
+        if(items == null) return null;
+        List<ItemStack> copy = new ArrayList<>(items.size());
+        for(ItemStack item : items){
+            copy.add(item != null ? item.clone() : null);
+        }
+        return copy;
     }
 
-    public void resetClosingTimer(){
-        closingTimer = Lootin.getPlugin().getConfig().getInt(LConstants.KEEP_IN_MEMORY,6000);
+    public UUID getContainerID() {
+        return containerID;
     }
 
     public String getLoottable() {
@@ -53,6 +71,7 @@ public class LootinContainer{
 
     public void setLoottable(String loottable) {
         this.loottable = loottable;
+        this.dirty = true;
     }
 
     public List<ItemStack> getDefaultLoot() {
@@ -61,6 +80,100 @@ public class LootinContainer{
 
     public void setDefaultLoot(List<ItemStack> defaultLoot) {
         this.defaultLoot = defaultLoot;
+        this.dirty = true;
+    }
+
+    public StoragePosition getPosition() {
+        return position;
+    }
+
+    public void setPosition(StoragePosition position) {
+        this.position = position;
+    }
+
+    /**
+     * @return true if this container was loaded from an old per-container file in the data folder
+     */
+    public boolean isLegacyFile() {
+        return legacyFile;
+    }
+
+    public void setLegacyFile(boolean legacyFile) {
+        this.legacyFile = legacyFile;
+    }
+
+    /**
+     * @return true if this container was loaded from or saved to its own file instead of a region file,
+     * which has to be removed once the container is stored in a region
+     */
+    public boolean isFlatFile() {
+        return flatFile;
+    }
+
+    public void setFlatFile(boolean flatFile) {
+        this.flatFile = flatFile;
+    }
+
+    /**
+     * @return true if this container is known to belong to a chest or barrel, false for minecarts
+     * and containers whose holder was never seen since this was added
+     */
+    public boolean isBlockContainer() {
+        return blockContainer;
+    }
+
+    public void setBlockContainer(boolean blockContainer) {
+        if(this.blockContainer != blockContainer){
+            this.blockContainer = blockContainer;
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Marks this container as changed, needed when the player data map itself is modified
+     */
+    public void markDirty() {
+        this.dirty = true;
+    }
+
+    /**
+     * @return true if this container or any of its player data changed since it was loaded or last saved
+     */
+    public boolean isDirty() {
+        if(dirty) return true;
+        for(PlayerLootData playerData : playerDataMap.values()){
+            if(playerData.isDirty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the container itself changed (loottable, default loot or the set of players),
+     * changes limited to single player data are reported by {@link PlayerLootData#isDirty()}
+     */
+    public boolean isStructureDirty() {
+        return dirty;
+    }
+
+    /**
+     * Carries the dirty flags of an older unsaved snapshot over to this one, so superseding a queued
+     * save does not lose changes that only the older snapshot knew about
+     */
+    void mergeDirty(LootinContainer older) {
+        if(older.dirty) dirty = true;
+        for(PlayerLootData playerData : older.playerDataMap.values()){
+            PlayerLootData current = playerDataMap.get(playerData.getPlayerID());
+            if(playerData.isDirty() && current != null){
+                current.markDirty();
+            }
+        }
+    }
+
+    public void markClean() {
+        this.dirty = false;
+        for(PlayerLootData playerData : playerDataMap.values()){
+            playerData.markClean();
+        }
     }
 
     public Map<UUID, PlayerLootData> getPlayerDataMap() {
@@ -0,0 +1,182 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+import com.github.sachin.lootin.utils.LConstants;
+import com.jeff_media.morepersistentdatatypes.DataType;
+import org.bukkit.Chunk;
+import org.bukkit.block.Barrel;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Chest;
+import org.bukkit.persistence.PersistentDataHolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Deletes stored data of containers that no longer exist.
+ * Containers broken by players leave a tombstone, chests and barrels are also found by comparing the containers
+ * stored for a chunk with the ones actually in it the first time the chunk loads. Minecarts move away from their
+ * home chunk, so they are only ever deleted through tombstones. Deletions run in small batches on the storage
+ * writer thread, after any save of the same container that was queued before.
+ */
+public class OrphanSweeper {
+
+    private final Lootin plugin;
+    private final File tombstoneFile;
+    private final int batchSize;
+    private final Queue<Orphan> orphans = new ConcurrentLinkedQueue<>();
+    private final Set<StoragePosition> reconciledChunks = ConcurrentHashMap.newKeySet();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    public OrphanSweeper(Lootin plugin, File tombstoneFile, int batchSize){
+        this.plugin = plugin;
+        this.tombstoneFile = tombstoneFile;
+        this.batchSize = Math.max(1,batchSize);
+        loadTombstones();
+    }
+
+    /**
+     * Marks the container of given holder for deletion, called once it got broken or destroyed
+     */
+    public void tombstone(PersistentDataHolder holder){
+        UUID containerID = holder.getPersistentDataContainer().get(LConstants.STORAGE_DATA_KEY,DataType.UUID);
+        if(containerID == null) return;
+        Map<UUID,StoragePosition> container = new HashMap<>(1);
+        ContainerPrefetcher.collect(holder,container);
+        // otherwise the cache writes it back once it expires
+        plugin.cachedContainers.remove(containerID);
+        orphans.add(new Orphan(containerID,container.get(containerID)));
+    }
+
+    /**
+     * Compares the containers stored for a freshly loaded chunk with the given ones found in it,
+     * each chunk is only checked once per server run
+     */
+    public void reconcile(Chunk chunk, Set<UUID> liveContainers){
+        StoragePosition position = new StoragePosition(chunk.getWorld().getName(),chunk.getX(),chunk.getZ());
+        if(!reconciledChunks.add(position)) return;
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            Set<UUID> candidates;
+            try {
+                candidates = new HashSet<>(plugin.getStorageBackend().getBlockContainerIDs(position));
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING,"Could not check chunk "+position.serialize()+" for orphaned containers",e);
+                return;
+            }
+            candidates.removeAll(liveContainers);
+            if(candidates.isEmpty() || !plugin.isEnabled()) return;
+            plugin.getScheduler().runTaskLater(plugin,() -> verify(chunk,position,candidates),chunk,1);
+        });
+    }
+
+    /**
+     * Checks the chunk again on its own thread, a container could have been placed since it loaded
+     */
+    private void verify(Chunk chunk, StoragePosition position, Set<UUID> candidates){
+        if(!chunk.isLoaded()) return;
+        for(BlockState state : plugin.isRunningPaper ? chunk.getTileEntities(false) : chunk.getTileEntities()){
+            if(state instanceof Chest || state instanceof Barrel){
+                candidates.remove(((PersistentDataHolder) state).getPersistentDataContainer().get(LConstants.STORAGE_DATA_KEY,DataType.UUID));
+            }
+        }
+        for(UUID containerID : candidates){
+            if(plugin.cachedContainers.containsKey(containerID) || plugin.getWriteQueue().isPending(containerID)) continue;
+            orphans.add(new Orphan(containerID,position));
+        }
+    }
+
+    /**
+     * Hands the next batch of orphans to the storage writer thread. Waiting for room in its queue happens on an
+     * async thread, so this can be called from a timer.
+     */
+    public void sweep(){
+        List<Orphan> batch = new ArrayList<>(batchSize);
+        Orphan orphan;
+        while (batch.size() < batchSize && (orphan = orphans.poll()) != null){
+            batch.add(orphan);
+        }
+        if(batch.isEmpty()) return;
+        plugin.getScheduler().runTaskAsynchronously(plugin,() -> plugin.getWriteQueue().runAfterQueued(() -> {
+            long reclaimed = 0;
+            int count = 0;
+            for(Orphan entry : batch){
+                try {
+                    long bytes = StorageConverterUtility.delete(entry.containerID,entry.position);
+                    if(bytes > 0){
+                        reclaimed += bytes;
+                        count++;
+                    }
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.WARNING,"Could not delete orphaned container "+entry.containerID,e);
+                }
+            }
+            deleted.addAndGet(count);
+            reclaimedBytes.addAndGet(reclaimed);
+            if(count > 0){
+                plugin.debug("Deleted "+count+" orphaned containers, reclaimed "+reclaimed+" bytes");
+            }
+        }));
+    }
+
+    public long getDeletedCount() {
+        return deleted.get();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    public int getQueuedCount() {
+        return orphans.size();
+    }
+
+    /**
+     * Keeps orphans that were not swept yet for the next start
+     */
+    public void shutdown(){
+        List<String> lines = new ArrayList<>();
+        for(Orphan orphan : orphans){
+            lines.add(orphan.containerID+" "+(orphan.position != null ? orphan.position.serialize() : "-"));
+        }
+        try {
+            if(lines.isEmpty()){
+                tombstoneFile.delete();
+            }
+            else{
+                Files.write(tombstoneFile.toPath(),lines,StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loadTombstones(){
+        if(!tombstoneFile.exists()) return;
+        try {
+            for(String line : Files.readAllLines(tombstoneFile.toPath(),StandardCharsets.UTF_8)){
+                String[] split = line.split(" ",2);
+                if(split.length != 2 || !StorageConverterUtility.isValidUUID(split[0])) continue;
+                orphans.add(new Orphan(UUID.fromString(split[0]),StoragePosition.deserialize(split[1])));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Orphan {
+        private final UUID containerID;
+        private final StoragePosition position;
+
+        private Orphan(UUID containerID, StoragePosition position){
+            this.containerID = containerID;
+            this.position = position;
+        }
+    }
+}
@@ -14,7 +14,9 @@ public class PlayerLootData {
     private UUID playerID;
     private long lastLootTime = 0;
     private int refills = 0;
-    private List<ItemStack> items;
+    // replaced as a whole, so a snapshot on another thread never sees the items half way through being copied
+    private volatile Items items;
+    private volatile boolean dirty;
 
     public PlayerLootData(UUID playerID){
         this.playerID = playerID;
@@ -23,10 +25,29 @@ public class PlayerLootData {
     public PlayerLootData(UUID playerID, List<ItemStack> items, long lastLootTime, int refills) {
         this.lastLootTime = lastLootTime;
         this.refills = refills;
-        this.items = items;
+        this.items = new Items(items,false);
         this.playerID = playerID;
     }
 
+    /**
+     * Creates player data whose items are only copied out of given list when they are first needed,
+     * the list and its stacks must never be modified afterwards
+     */
+    static PlayerLootData lazy(UUID playerID, List<ItemStack> sharedItems, long lastLootTime, int refills){
+        PlayerLootData playerData = new PlayerLootData(playerID,null,lastLootTime,refills);
+        playerData.items = new Items(sharedItems,true);
+        return playerData;
+    }
+
+    public PlayerLootData snapshot(){
+        Items current = items;
+        PlayerLootData copy = new PlayerLootData(playerID,null,lastLootTime,refills);
+        // shared stacks are never modified, the copy can keep sharing them
+        copy.items = current.shared ? current : new Items(LootinContainer.copyItems(current.list),false);
+        copy.dirty = dirty;
+        return copy;
+    }
+
     public boolean isRefillRequired(long currentTime, World world){
         if(!Lootin.getPlugin().getWorldManager().isAutoReplenishEnabled(world.getName())) return false;
         Player player = Bukkit.getPlayer(playerID);
@@ -53,19 +74,53 @@ public class PlayerLootData {
     }
 
     public List<ItemStack> getItems() {
-        return items;
+        Items current = items;
+        if(!current.shared) return current.list;
+        synchronized (this){
+            current = items;
+            if(current.shared){
+                current = new Items(LootinContainer.copyItems(current.list),false);
+                items = current;
+            }
+            return current.list;
+        }
+    }
+
+    /**
+     * @return the items without copying shared ones, only for reading
+     */
+    List<ItemStack> peekItems() {
+        return items.list;
     }
 
     public void setLastLootTime(long lastLootTime) {
         this.lastLootTime = lastLootTime;
+        this.dirty = true;
     }
 
     public void setRefills(int refills) {
         this.refills = refills;
+        this.dirty = true;
     }
 
     public void setItems(List<ItemStack> items) {
-        this.items = items;
+        this.items = new Items(items,false);
+        this.dirty = true;
+    }
+
+    /**
+     * @return true if this data changed since it was loaded or last handed to the writer
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    void markDirty() {
+        this.dirty = true;
+    }
+
+    public void markClean() {
+        this.dirty = false;
     }
 
     public UUID getPlayerID() {
@@ -75,4 +130,15 @@ public class PlayerLootData {
     public void setPlayerID(UUID playerID) {
         this.playerID = playerID;
     }
+
+    private static final class Items {
+        private final List<ItemStack> list;
+        // decoded stacks shared with the storage record, only copied once something asks for the items
+        private final boolean shared;
+
+        private Items(List<ItemStack> list, boolean shared){
+            this.list = list;
+            this.shared = shared;
+        }
+    }
 }
@@ -0,0 +1,196 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+import com.github.sachin.lootin.utils.LConstants;
+import com.jeff_media.morepersistentdatatypes.DataType;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.TileState;
+import org.bukkit.block.data.type.Chest;
+import org.bukkit.entity.Player;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+import org.bukkit.util.Vector;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Guesses which containers players are about to open and loads them into the cache before they get there.
+ * Block containers of loaded chunks are indexed by chunk, every few ticks the containers within a radius in front
+ * of each player that are not cached yet are handed to the {@link ContainerPrefetcher}. A container record holds
+ * the loot of every player, so the data of the player walking up to it is loaded with it. Each half of a double chest
+ * has its own container but opening either shows both, so the halves are prefetched together and count as one.
+ * Minecarts move around and are only prefetched when their chunk loads.
+ */
+public class ProximityPrefetcher {
+
+    // containers this close count as ahead of the player whichever way they look
+    private static final double ALWAYS_AHEAD = 3;
+    // cosine of the widest angle between looking direction and container that still counts as ahead, 60 degrees
+    private static final double MIN_ALIGNMENT = 0.5;
+
+    private final Lootin plugin;
+    private final ContainerPrefetcher prefetcher;
+    private final double radius;
+    private final int maxContainers;
+    // world name to chunk key to the containers in that chunk, chunks are indexed and dropped on their own threads
+    private final Map<String,Map<Long,IndexedContainer[]>> index = new ConcurrentHashMap<>();
+
+    public ProximityPrefetcher(Lootin plugin, ContainerPrefetcher prefetcher, double radius, int maxContainers){
+        this.plugin = plugin;
+        this.prefetcher = prefetcher;
+        this.radius = Math.max(1,radius);
+        this.maxContainers = Math.max(1,maxContainers);
+    }
+
+    /**
+     * Indexes the lootin containers of a chunk that just loaded
+     */
+    public void index(Chunk chunk, List<TileState> containers){
+        List<IndexedContainer> indexed = new ArrayList<>(containers.size());
+        for(TileState state : containers){
+            PersistentDataContainer data = state.getPersistentDataContainer();
+            UUID containerID = data.get(LConstants.STORAGE_DATA_KEY,DataType.UUID);
+            if(containerID == null) continue;
+            StoragePosition position = StoragePosition.deserialize(data.get(LConstants.STORAGE_POSITION_KEY,PersistentDataType.STRING));
+            indexed.add(new IndexedContainer(containerID,position != null ? position : StoragePosition.of(state),state.getX(),state.getY(),state.getZ(),holderKey(state)));
+        }
+        Map<Long,IndexedContainer[]> chunks = index.computeIfAbsent(chunk.getWorld().getName(),world -> new ConcurrentHashMap<>());
+        if(indexed.isEmpty()){
+            chunks.remove(key(chunk.getX(),chunk.getZ()));
+        }
+        else{
+            chunks.put(key(chunk.getX(),chunk.getZ()),indexed.toArray(new IndexedContainer[0]));
+        }
+    }
+
+    public void unindex(Chunk chunk){
+        Map<Long,IndexedContainer[]> chunks = index.get(chunk.getWorld().getName());
+        if(chunks != null){
+            chunks.remove(key(chunk.getX(),chunk.getZ()));
+        }
+    }
+
+    /**
+     * @return number of indexed containers
+     */
+    public int getIndexedCount(){
+        int count = 0;
+        for(Map<Long,IndexedContainer[]> chunks : index.values()){
+            for(IndexedContainer[] containers : chunks.values()){
+                count += containers.length;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Queues the containers ahead of every online player, run by a timer. On Folia player positions are read
+     * from the global region, a slightly outdated position only makes the guess a little worse.
+     */
+    public void tick(){
+        for(Player player : Bukkit.getOnlinePlayers()){
+            if(player.getGameMode() == GameMode.SPECTATOR) continue;
+            Location eye = player.getEyeLocation();
+            if(eye.getWorld() == null) continue;
+            Map<Long,IndexedContainer[]> chunks = index.get(eye.getWorld().getName());
+            if(chunks == null || chunks.isEmpty()) continue;
+            Map<UUID,StoragePosition> ahead = findAhead(eye,chunks);
+            if(!ahead.isEmpty()){
+                prefetcher.prefetch(eye,ahead);
+            }
+        }
+    }
+
+    private Map<UUID,StoragePosition> findAhead(Location eye, Map<Long,IndexedContainer[]> chunks){
+        Vector facing = eye.getDirection();
+        double x = eye.getX(), y = eye.getY(), z = eye.getZ();
+        List<IndexedContainer> found = new ArrayList<>();
+        Map<IndexedContainer,Double> distances = new HashMap<>();
+        int minChunkX = (int) Math.floor(x-radius) >> 4, maxChunkX = (int) Math.floor(x+radius) >> 4;
+        int minChunkZ = (int) Math.floor(z-radius) >> 4, maxChunkZ = (int) Math.floor(z+radius) >> 4;
+        for(int chunkX=minChunkX;chunkX<=maxChunkX;chunkX++){
+            for(int chunkZ=minChunkZ;chunkZ<=maxChunkZ;chunkZ++){
+                IndexedContainer[] containers = chunks.get(key(chunkX,chunkZ));
+                if(containers == null) continue;
+                for(IndexedContainer container : containers){
+                    double dx = container.x+0.5-x, dy = container.y+0.5-y, dz = container.z+0.5-z;
+                    double distance = Math.sqrt(dx*dx+dy*dy+dz*dz);
+                    if(distance > radius) continue;
+                    if(distance > ALWAYS_AHEAD && (dx*facing.getX()+dy*facing.getY()+dz*facing.getZ())/distance < MIN_ALIGNMENT) continue;
+                    if(plugin.cachedContainers.containsKey(container.containerID)) continue;
+                    found.add(container);
+                    distances.put(container,distance);
+                }
+            }
+        }
+        found.sort(Comparator.comparingDouble(distances::get));
+        Map<UUID,StoragePosition> ahead = new LinkedHashMap<>();
+        Set<Long> holders = new HashSet<>();
+        for(IndexedContainer container : found){
+            // the other half of a double chest that is ahead already comes along without counting again
+            if(!holders.contains(container.holder)){
+                if(holders.size() >= maxContainers) continue;
+                holders.add(container.holder);
+            }
+            ahead.put(container.containerID,container.position);
+        }
+        return ahead;
+    }
+
+    /**
+     * @return key of the chest, barrel or double chest given block belongs to, the same for both halves of a double chest
+     */
+    private static long holderKey(TileState state){
+        long key = blockKey(state.getX(),state.getY(),state.getZ());
+        if(state.getBlockData() instanceof Chest){
+            Chest chest = (Chest) state.getBlockData();
+            if(chest.getType() == Chest.Type.SINGLE) return key;
+            // the other half is to the right of a left half when looking at the front, like vanilla connects them
+            BlockFace facing = chest.getFacing();
+            BlockFace side = chest.getType() == Chest.Type.LEFT ? clockwise(facing) : clockwise(clockwise(clockwise(facing)));
+            key = Math.min(key,blockKey(state.getX()+side.getModX(),state.getY(),state.getZ()+side.getModZ()));
+        }
+        return key;
+    }
+
+    private static BlockFace clockwise(BlockFace face){
+        switch (face){
+            case NORTH: return BlockFace.EAST;
+            case EAST: return BlockFace.SOUTH;
+            case SOUTH: return BlockFace.WEST;
+            case WEST: return BlockFace.NORTH;
+            default: return face;
+        }
+    }
+
+    private static long blockKey(int x, int y, int z){
+        return ((long) (x & 0x3ffffff) << 38) | ((long) (z & 0x3ffffff) << 12) | (y & 0xfff);
+    }
+
+    private static long key(int chunkX, int chunkZ){
+        return ((long) chunkX << 32) | (chunkZ & 0xffffffffL);
+    }
+
+    private static class IndexedContainer {
+        private final UUID containerID;
+        private final StoragePosition position;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final long holder;
+
+        private IndexedContainer(UUID containerID, StoragePosition position, int x, int y, int z, long holder){
+            this.containerID = containerID;
+            this.position = position;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.holder = holder;
+        }
+    }
+}
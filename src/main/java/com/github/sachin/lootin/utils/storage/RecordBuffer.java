@@ -0,0 +1,68 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+/**
+ * Buffers reused by every record read on the same thread, so bulk loads like prefetching and exports don't
+ * allocate fresh arrays and inflaters per record. The content is only valid until the thread reads the next record.
+ */
+class RecordBuffer {
+
+    private static final ThreadLocal<RecordBuffer> BUFFERS = ThreadLocal.withInitial(RecordBuffer::new);
+
+    private byte[] array = new byte[4096];
+    private int length;
+    private ByteBuffer fileBuffer = ByteBuffer.allocateDirect(4096);
+    private final Inflater inflater = new Inflater(true);
+
+    static RecordBuffer get(){
+        return BUFFERS.get();
+    }
+
+    /**
+     * @return the array holding the last record, only the first {@link #length()} bytes belong to it
+     */
+    byte[] array(){
+        return array;
+    }
+
+    int length(){
+        return length;
+    }
+
+    /**
+     * Makes room for a record of given length, the content is not kept
+     * @return the array to write the record into
+     */
+    byte[] reserve(int length){
+        if(array.length < length){
+            array = new byte[Math.max(length,array.length*2)];
+        }
+        this.length = length;
+        return array;
+    }
+
+    /**
+     * Copies the remaining bytes of given buffer, for records that are not compressed
+     */
+    void copyFrom(ByteBuffer data){
+        data.get(reserve(data.remaining()),0,data.remaining());
+    }
+
+    /**
+     * @return a cleared direct buffer of at least given capacity for reading files
+     */
+    ByteBuffer fileBuffer(int capacity){
+        if(fileBuffer.capacity() < capacity){
+            fileBuffer = ByteBuffer.allocateDirect(Math.max(capacity,fileBuffer.capacity()*2));
+        }
+        fileBuffer.clear().limit(capacity);
+        return fileBuffer;
+    }
+
+    Inflater inflater(){
+        inflater.reset();
+        return inflater;
+    }
+}
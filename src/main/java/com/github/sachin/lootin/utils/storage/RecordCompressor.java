@@ -0,0 +1,281 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression for storage records with optional preset dictionaries.
+ * Records are only a few hundred bytes, so a dictionary trained from existing records gives deflate the
+ * shared context a single record lacks.
+ * <pre>
+ * compressed := 'L' 'Z' varint(dictionaryID) varint(rawLength) deflate   dictionaryID 0 = no dictionary
+ * </pre>
+ * Dictionaries are kept as {@code <id>.dict} files and never removed, the newest one is used for new records
+ * while records written with older ones stay readable.
+ */
+public class RecordCompressor {
+
+    public static final int MAX_DICTIONARY_SIZE = 32*1024;
+
+    private static final byte MAGIC_1 = 'L';
+    private static final byte MAGIC_2 = 'Z';
+    private static final int KMER = 8;
+    private static final int SEGMENT = 64;
+
+    public enum Mode {
+        NONE,
+        DEFLATE,
+        DICTIONARY
+    }
+
+    private final File dictionaryFolder;
+    private final Mode mode;
+    private final Map<Integer,byte[]> dictionaries = new ConcurrentHashMap<>();
+    private volatile int activeDictionaryID;
+
+    public RecordCompressor(File dictionaryFolder, Mode mode){
+        this.dictionaryFolder = dictionaryFolder;
+        this.mode = mode;
+        File[] files = dictionaryFolder.listFiles((dir, name) -> name.endsWith(".dict"));
+        if(files == null) return;
+        for(File file : files){
+            try {
+                int id = Integer.parseInt(file.getName().substring(0,file.getName().length()-5));
+                dictionaries.put(id,Files.readAllBytes(file.toPath()));
+                activeDictionaryID = Math.max(activeDictionaryID,id);
+            } catch (NumberFormatException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static boolean isCompressed(byte[] data){
+        return data.length >= 2 && data[0] == MAGIC_1 && data[1] == MAGIC_2;
+    }
+
+    /**
+     * Compresses given record according to the configured mode, returns it unchanged for {@link Mode#NONE}
+     */
+    public byte[] compress(byte[] record) throws IOException {
+        if(mode == Mode.NONE) return record;
+        return compress(record,mode == Mode.DICTIONARY ? activeDictionaryID : 0);
+    }
+
+    public byte[] compress(byte[] record, int dictionaryID) throws IOException {
+        byte[] dictionary = getDictionary(dictionaryID);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,true);
+        try {
+            if(dictionary != null){
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(record);
+            deflater.finish();
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(record.length/2+16);
+            DataOutputStream out = new DataOutputStream(byteStream);
+            out.writeByte(MAGIC_1);
+            out.writeByte(MAGIC_2);
+            ContainerCodec.writeVarInt(out,dictionaryID);
+            ContainerCodec.writeVarInt(out,record.length);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()){
+                int length = deflater.deflate(buffer);
+                out.write(buffer,0,length);
+            }
+            out.flush();
+            return byteStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] decompress(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if(in.readByte() != MAGIC_1 || in.readByte() != MAGIC_2){
+            throw new IOException("Not a compressed lootin record");
+        }
+        int dictionaryID = ContainerCodec.readVarInt(in);
+        int length = ContainerCodec.readVarInt(in);
+        byte[] dictionary = getDictionary(dictionaryID);
+        int offset = data.length-in.available();
+        Inflater inflater = new Inflater(true);
+        try {
+            if(dictionary != null){
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(data,offset,data.length-offset);
+            byte[] record = new byte[length];
+            int read = 0;
+            while (read < length){
+                int n = inflater.inflate(record,read,length-read);
+                if(n == 0 && (inflater.finished() || inflater.needsInput())) break;
+                read += n;
+            }
+            if(read != length){
+                throw new IOException("Compressed record is truncated");
+            }
+            return record;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed record",e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Inflates a record straight out of given (usually mapped) buffer into the calling thread's record buffer
+     */
+    void decompress(ByteBuffer data, RecordBuffer out) throws IOException {
+        if(data.get() != MAGIC_1 || data.get() != MAGIC_2){
+            throw new IOException("Not a compressed lootin record");
+        }
+        int dictionaryID = readVarInt(data);
+        int length = readVarInt(data);
+        byte[] dictionary = getDictionary(dictionaryID);
+        byte[] record = out.reserve(length);
+        Inflater inflater = out.inflater();
+        try {
+            if(dictionary != null){
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(data);
+            int read = 0;
+            while (read < length){
+                int n = inflater.inflate(record,read,length-read);
+                if(n == 0 && (inflater.finished() || inflater.needsInput())) break;
+                read += n;
+            }
+            if(read != length){
+                throw new IOException("Compressed record is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed record",e);
+        }
+    }
+
+    static boolean isCompressed(ByteBuffer data){
+        return data.remaining() >= 2 && data.get(data.position()) == MAGIC_1 && data.get(data.position()+1) == MAGIC_2;
+    }
+
+    private static int readVarInt(ByteBuffer data) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            if(!data.hasRemaining()) throw new IOException("Compressed record is truncated");
+            int b = data.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("VarInt too long");
+    }
+
+    private byte[] getDictionary(int dictionaryID) throws IOException {
+        if(dictionaryID == 0) return null;
+        byte[] dictionary = dictionaries.get(dictionaryID);
+        if(dictionary == null){
+            throw new IOException("Missing compression dictionary "+dictionaryID);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Stores given dictionary under the next free id and uses it for all records written from now on
+     * @return id of the new dictionary
+     */
+    public synchronized int addDictionary(byte[] dictionary) throws IOException {
+        int id = activeDictionaryID+1;
+        if(!dictionaryFolder.exists()){
+            dictionaryFolder.mkdirs();
+        }
+        Files.write(new File(dictionaryFolder,id+".dict").toPath(),dictionary);
+        dictionaries.put(id,dictionary);
+        activeDictionaryID = id;
+        return id;
+    }
+
+    public int getActiveDictionaryID() {
+        return activeDictionaryID;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Builds a dictionary out of the segments of given records that share the most content with other records.
+     * Every segment is scored by how many records contain each of its 8 byte sequences, the best segments are
+     * picked greedily and sequences already in the dictionary stop counting towards later segments.
+     * The best segments end up at the end of the dictionary where deflate reaches them with the shortest distances.
+     */
+    public static byte[] train(List<byte[]> samples, int maxSize){
+        Map<Long,Integer> frequency = new HashMap<>();
+        for(byte[] sample : samples){
+            Set<Long> seen = new HashSet<>();
+            for(int i=0;i+KMER<=sample.length;i++){
+                long kmer = kmer(sample,i);
+                if(seen.add(kmer)){
+                    frequency.merge(kmer,1,Integer::sum);
+                }
+            }
+        }
+        PriorityQueue<long[]> segments = new PriorityQueue<>((a,b) -> Long.compare(b[0],a[0]));
+        for(int s=0;s<samples.size();s++){
+            byte[] sample = samples.get(s);
+            for(int start=0;start+KMER<=sample.length;start+=KMER){
+                long score = score(sample,start,frequency);
+                if(score > samples.size()/10+1){
+                    segments.add(new long[]{score,s,start});
+                }
+            }
+        }
+        List<byte[]> picked = new ArrayList<>();
+        int size = 0;
+        while (size < maxSize && !segments.isEmpty()){
+            long[] segment = segments.poll();
+            byte[] sample = samples.get((int) segment[1]);
+            int start = (int) segment[2];
+            long score = score(sample,start,frequency);
+            // scores only drop once their sequences got picked, so re-queue until the best one is still the best
+            if(!segments.isEmpty() && score < segments.peek()[0]){
+                if(score > 0) segments.add(new long[]{score,segment[1],segment[2]});
+                continue;
+            }
+            if(score <= 0) break;
+            int end = Math.min(sample.length,start+SEGMENT);
+            for(int i=start;i+KMER<=end;i++){
+                frequency.remove(kmer(sample,i));
+            }
+            int length = Math.min(end-start,maxSize-size);
+            picked.add(Arrays.copyOfRange(sample,start,start+length));
+            size += length;
+        }
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for(int i=picked.size()-1;i>=0;i--){
+            dictionary.write(picked.get(i),0,picked.get(i).length);
+        }
+        return dictionary.toByteArray();
+    }
+
+    private static long score(byte[] sample, int start, Map<Long,Integer> frequency){
+        int end = Math.min(sample.length,start+SEGMENT);
+        long score = 0;
+        Set<Long> seen = new HashSet<>();
+        for(int i=start;i+KMER<=end;i++){
+            long kmer = kmer(sample,i);
+            if(seen.add(kmer)){
+                // sequences only found in this record do not help other records
+                int count = frequency.getOrDefault(kmer,0);
+                if(count > 1) score += count;
+            }
+        }
+        return score;
+    }
+
+    private static long kmer(byte[] data, int offset){
+        return ByteBuffer.wrap(data,offset,KMER).getLong();
+    }
+}
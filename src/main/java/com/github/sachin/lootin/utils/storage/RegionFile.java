@@ -0,0 +1,316 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Packs many container records into a single file, similar to vanilla .mca region files.
+ * <p>
+ * Layout: a fixed header holding an offset table of {@link #MAX_ENTRIES} entries, followed by
+ * {@link #SECTOR_BYTES} byte sectors holding the record payloads. Each table entry stores the
+ * container uuid, first sector, payload length, the local chunk index and flags. The table is read
+ * once when the file is opened, after that a read is one seek + one read and a write is one seek +
+ * one write of the payload plus the 28 byte table entry. Bulk reads go through a read-only mapping of the
+ * file instead, see {@link #read(UUID, RecordReader)}.
+ * <p>
+ * Records are never written over: a new version goes to free sectors and the sectors of the previous version, or of
+ * a deleted record, are only handed out again after the next {@link #sync()}. Writes are not forced to disk one by
+ * one, whoever writes a batch syncs once at its end, and the container journal covers what was written since.
+ */
+public class RegionFile {
+
+    public static final int SECTOR_BYTES = 512;
+    public static final int MAX_ENTRIES = 1024;
+
+    /**
+     * Set for containers stored by a chest or barrel, whose home chunk is where the block is
+     */
+    public static final short FLAG_BLOCK_CONTAINER = 1;
+
+    private static final int MAGIC = 0x4C54524E; // "LTRN"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int ENTRY_BYTES = 28;
+    private static final int TABLE_SECTORS = (HEADER_BYTES + MAX_ENTRIES * ENTRY_BYTES + SECTOR_BYTES - 1) / SECTOR_BYTES;
+
+    private final File file;
+    private final RandomAccessFile raf;
+
+    private final Map<UUID,Integer> slots = new HashMap<>();
+    private final UUID[] ids = new UUID[MAX_ENTRIES];
+    private final int[] offsets = new int[MAX_ENTRIES];
+    private final int[] lengths = new int[MAX_ENTRIES];
+    private final short[] chunks = new short[MAX_ENTRIES];
+    private final short[] flags = new short[MAX_ENTRIES];
+    private final BitSet usedSectors = new BitSet();
+    // start and length of sectors that are only reused after the next sync
+    private final List<int[]> releasedSectors = new ArrayList<>();
+    private boolean unsynced;
+    private MappedByteBuffer mapping;
+
+    public RegionFile(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file,"rw");
+        if(raf.length() < (long) TABLE_SECTORS * SECTOR_BYTES){
+            writeHeader();
+        }
+        else{
+            readTable();
+        }
+        usedSectors.set(0,TABLE_SECTORS);
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] table = new byte[TABLE_SECTORS * SECTOR_BYTES];
+        raf.seek(0);
+        raf.write(table);
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(MAX_ENTRIES);
+        raf.writeInt(SECTOR_BYTES);
+    }
+
+    private void readTable() throws IOException {
+        byte[] table = new byte[HEADER_BYTES + MAX_ENTRIES * ENTRY_BYTES];
+        raf.seek(0);
+        raf.readFully(table);
+        if(readInt(table,0) != MAGIC){
+            throw new IOException("Not a lootin region file: "+file.getName());
+        }
+        for(int i=0;i<MAX_ENTRIES;i++){
+            int pos = HEADER_BYTES + i * ENTRY_BYTES;
+            long msb = readLong(table,pos);
+            long lsb = readLong(table,pos+8);
+            int offset = readInt(table,pos+16);
+            if(offset == 0) continue;
+            UUID id = new UUID(msb,lsb);
+            ids[i] = id;
+            offsets[i] = offset;
+            lengths[i] = readInt(table,pos+20);
+            chunks[i] = (short) (((table[pos+24] & 0xFF) << 8) | (table[pos+25] & 0xFF));
+            flags[i] = (short) (((table[pos+26] & 0xFF) << 8) | (table[pos+27] & 0xFF));
+            slots.put(id,i);
+            usedSectors.set(offset,offset+sectorsFor(lengths[i]));
+        }
+    }
+
+    public synchronized boolean contains(UUID id){
+        return slots.containsKey(id);
+    }
+
+    public synchronized byte[] read(UUID id) throws IOException {
+        Integer slot = slots.get(id);
+        if(slot == null) return null;
+        byte[] data = new byte[lengths[slot]];
+        raf.seek((long) offsets[slot] * SECTOR_BYTES);
+        raf.readFully(data);
+        return data;
+    }
+
+    /**
+     * Hands the record of given container to the reader as a slice of a mapping of this file, without copying it
+     * to the heap. The slice is only valid during the call, the mapping grows when records past its end are read.
+     * @return what the reader returned, or null if there is no such record
+     */
+    public synchronized <T> T read(UUID id, RecordReader<T> reader) throws IOException {
+        Integer slot = slots.get(id);
+        if(slot == null) return null;
+        long start = (long) offsets[slot] * SECTOR_BYTES;
+        if(mapping == null || start+lengths[slot] > mapping.capacity()){
+            // writes go through the same file, so the mapping sees them and only has to be replaced when the file grew
+            mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,raf.length());
+        }
+        return reader.read(mapping.slice((int) start,lengths[slot]),flags[slot]);
+    }
+
+    @FunctionalInterface
+    public interface RecordReader<T> {
+        T read(ByteBuffer record, short flags) throws IOException;
+    }
+
+    /**
+     * Writes a record into this region, it is only certainly on disk after the next {@link #sync()}
+     * @return false if the offset table is full and the record could not be stored
+     */
+    public synchronized boolean write(UUID id, int localChunk, short entryFlags, byte[] data) throws IOException {
+        Integer slot = slots.get(id);
+        if(slot == null){
+            slot = freeSlot();
+            if(slot == -1) return false;
+        }
+        int oldOffset = offsets[slot];
+        int oldSectors = oldOffset != 0 ? sectorsFor(lengths[slot]) : 0;
+        // the old sectors stay allocated, so this never hands them out again
+        int offset = allocate(sectorsFor(data.length));
+        try {
+            raf.seek((long) offset * SECTOR_BYTES);
+            raf.write(data);
+        } catch (IOException e) {
+            usedSectors.clear(offset,offset+sectorsFor(data.length));
+            throw e;
+        }
+
+        ids[slot] = id;
+        offsets[slot] = offset;
+        lengths[slot] = data.length;
+        chunks[slot] = (short) localChunk;
+        flags[slot] = entryFlags;
+        slots.put(id,slot);
+        writeEntry(slot);
+        if(oldOffset != 0){
+            releasedSectors.add(new int[]{oldOffset,oldSectors});
+        }
+        unsynced = true;
+        return true;
+    }
+
+    /**
+     * Removes a record from this region
+     * @return number of bytes that were reclaimed
+     */
+    public synchronized long delete(UUID id) throws IOException {
+        Integer slot = slots.remove(id);
+        if(slot == null) return 0;
+        int sectors = sectorsFor(lengths[slot]);
+        releasedSectors.add(new int[]{offsets[slot],sectors});
+        ids[slot] = null;
+        offsets[slot] = 0;
+        lengths[slot] = 0;
+        chunks[slot] = 0;
+        flags[slot] = 0;
+        writeEntry(slot);
+        unsynced = true;
+        return (long) sectors * SECTOR_BYTES;
+    }
+
+    /**
+     * Forces every write since the last sync to disk, then frees the sectors they replaced
+     */
+    public synchronized void sync() throws IOException {
+        if(!unsynced) return;
+        raf.getChannel().force(false);
+        for(int[] sectors : releasedSectors){
+            usedSectors.clear(sectors[0],sectors[0]+sectors[1]);
+        }
+        releasedSectors.clear();
+        unsynced = false;
+    }
+
+    public synchronized Set<UUID> getContainerIDs(){
+        return new HashSet<>(slots.keySet());
+    }
+
+    /**
+     * @return local chunk index of every record in this region
+     */
+    public synchronized Map<UUID,Integer> getLocalChunks(){
+        Map<UUID,Integer> localChunks = new HashMap<>();
+        for(Map.Entry<UUID,Integer> entry : slots.entrySet()){
+            localChunks.put(entry.getKey(),(int) chunks[entry.getValue()]);
+        }
+        return localChunks;
+    }
+
+    /**
+     * @return ids of the records stored for given local chunk that have all of given flags set
+     */
+    public synchronized Set<UUID> getContainerIDs(int localChunk, short requiredFlags){
+        Set<UUID> result = new HashSet<>();
+        for(int slot : slots.values()){
+            if(chunks[slot] == localChunk && (flags[slot] & requiredFlags) == requiredFlags){
+                result.add(ids[slot]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return flags of given record, 0 if it is not stored
+     */
+    public synchronized short getFlags(UUID id){
+        Integer slot = slots.get(id);
+        return slot != null ? flags[slot] : 0;
+    }
+
+    public synchronized int size(){
+        return slots.size();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        // the mapping itself is released once it gets garbage collected
+        mapping = null;
+        raf.close();
+    }
+
+    private int freeSlot(){
+        for(int i=0;i<MAX_ENTRIES;i++){
+            if(offsets[i] == 0) return i;
+        }
+        return -1;
+    }
+
+    private int allocate(int sectors){
+        int start = TABLE_SECTORS;
+        while (true){
+            start = usedSectors.nextClearBit(start);
+            int end = usedSectors.nextSetBit(start);
+            if(end == -1 || end - start >= sectors){
+                usedSectors.set(start,start+sectors);
+                return start;
+            }
+            start = end;
+        }
+    }
+
+    private void writeEntry(int slot) throws IOException {
+        byte[] entry = new byte[ENTRY_BYTES];
+        UUID id = ids[slot];
+        if(id != null){
+            writeLong(entry,0,id.getMostSignificantBits());
+            writeLong(entry,8,id.getLeastSignificantBits());
+        }
+        writeInt(entry,16,offsets[slot]);
+        writeInt(entry,20,lengths[slot]);
+        entry[24] = (byte) (chunks[slot] >> 8);
+        entry[25] = (byte) chunks[slot];
+        entry[26] = (byte) (flags[slot] >> 8);
+        entry[27] = (byte) flags[slot];
+        raf.seek(HEADER_BYTES + (long) slot * ENTRY_BYTES);
+        raf.write(entry);
+    }
+
+    private static int sectorsFor(int length){
+        return Math.max(1,(length + SECTOR_BYTES - 1) / SECTOR_BYTES);
+    }
+
+    private static int readInt(byte[] b, int pos){
+        return ((b[pos] & 0xFF) << 24) | ((b[pos+1] & 0xFF) << 16) | ((b[pos+2] & 0xFF) << 8) | (b[pos+3] & 0xFF);
+    }
+
+    private static long readLong(byte[] b, int pos){
+        return ((long) readInt(b,pos) << 32) | (readInt(b,pos+4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeInt(byte[] b, int pos, int value){
+        b[pos] = (byte) (value >>> 24);
+        b[pos+1] = (byte) (value >>> 16);
+        b[pos+2] = (byte) (value >>> 8);
+        b[pos+3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] b, int pos, long value){
+        writeInt(b,pos,(int) (value >>> 32));
+        writeInt(b,pos+4,(int) value);
+    }
+}
@@ -0,0 +1,251 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Keeps a bounded number of {@link RegionFile}s open, closing the least recently used one when full.
+ * All region access goes through this class so a file is never closed while it is being used. The lock of this
+ * class only guards opening and closing files, reads and writes lock the region file they use, so a write syncing
+ * one region doesn't hold up reads of the others.
+ */
+public class RegionFileCache {
+
+    private static final int MAX_OPEN_FILES = 64;
+
+    private final File regionsFolder;
+    private final LinkedHashMap<File,OpenFile> openFiles = new LinkedHashMap<>(16,0.75f,true);
+
+    public RegionFileCache(File regionsFolder){
+        this.regionsFolder = regionsFolder;
+    }
+
+    public byte[] read(StoragePosition position, UUID containerID) throws IOException {
+        OpenFile open = acquire(getFile(position),false);
+        if(open == null) return null;
+        try {
+            return open.regionFile.read(containerID);
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * @see RegionFile#read(UUID, RegionFile.RecordReader)
+     */
+    public <T> T read(StoragePosition position, UUID containerID, RegionFile.RecordReader<T> reader) throws IOException {
+        OpenFile open = acquire(getFile(position),false);
+        if(open == null) return null;
+        try {
+            return open.regionFile.read(containerID,reader);
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * @return false if the region is full and the record has to be stored elsewhere
+     */
+    public boolean write(StoragePosition position, UUID containerID, short flags, byte[] data) throws IOException {
+        OpenFile open = acquire(getFile(position),true);
+        try {
+            return open.regionFile.write(containerID,position.getLocalChunkIndex(),flags,data);
+        } finally {
+            release(open);
+        }
+    }
+
+    public short getFlags(StoragePosition position, UUID containerID) throws IOException {
+        OpenFile open = acquire(getFile(position),false);
+        if(open == null) return 0;
+        try {
+            return open.regionFile.getFlags(containerID);
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * @return ids of the records whose home is given chunk and that have all of given flags set
+     */
+    public Set<UUID> getContainerIDs(StoragePosition chunk, short requiredFlags) throws IOException {
+        OpenFile open = acquire(getFile(chunk),false);
+        if(open == null) return Collections.emptySet();
+        try {
+            return open.regionFile.getContainerIDs(chunk.getLocalChunkIndex(),requiredFlags);
+        } finally {
+            release(open);
+        }
+    }
+
+    public long delete(StoragePosition position, UUID containerID) throws IOException {
+        OpenFile open = acquire(getFile(position),false);
+        if(open == null) return 0;
+        try {
+            return open.regionFile.delete(containerID);
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * Forces the writes of every open region file to disk, see {@link RegionFile#sync()}
+     */
+    public void syncAll() throws IOException {
+        List<OpenFile> files;
+        synchronized (this){
+            files = new ArrayList<>(openFiles.values());
+            for(OpenFile open : files){
+                open.users++;
+            }
+        }
+        try {
+            for(OpenFile open : files){
+                open.regionFile.sync();
+            }
+        } finally {
+            for(OpenFile open : files){
+                release(open);
+            }
+        }
+    }
+
+    /**
+     * Opens given region file or takes the open one, it stays open until {@link #release(OpenFile)}
+     * @param create whether to create the region file if it does not exist yet
+     * @return null if the file doesn't exist and create is false
+     */
+    private synchronized OpenFile acquire(File file, boolean create) throws IOException {
+        OpenFile open = openFiles.get(file);
+        if(open == null){
+            if(!create && !file.exists()) return null;
+            if(!file.getParentFile().exists()){
+                file.getParentFile().mkdirs();
+            }
+            if(openFiles.size() >= MAX_OPEN_FILES){
+                Iterator<Map.Entry<File,OpenFile>> iterator = openFiles.entrySet().iterator();
+                OpenFile eldest = iterator.next().getValue();
+                iterator.remove();
+                eldest.evicted = true;
+                if(eldest.users == 0){
+                    eldest.regionFile.close();
+                }
+            }
+            open = new OpenFile(new RegionFile(file));
+            openFiles.put(file,open);
+        }
+        open.users++;
+        return open;
+    }
+
+    private synchronized void release(OpenFile open) throws IOException {
+        // files that got evicted while in use are closed by their last user
+        if(--open.users == 0 && open.evicted){
+            open.regionFile.close();
+        }
+    }
+
+    public File getFile(StoragePosition position){
+        return new File(new File(regionsFolder,position.getWorld()),"r."+position.getRegionX()+"."+position.getRegionZ()+".ltr");
+    }
+
+    /**
+     * @return every region file of every world, including ones that are not open
+     */
+    public List<File> listRegionFiles(){
+        List<File> files = new ArrayList<>();
+        File[] worlds = regionsFolder.listFiles(File::isDirectory);
+        if(worlds == null) return files;
+        for(File world : worlds){
+            File[] regions = world.listFiles((dir, name) -> name.endsWith(".ltr"));
+            if(regions != null){
+                files.addAll(Arrays.asList(regions));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Reads up to max records stored in given region file
+     */
+    public List<byte[]> readAll(File file, int max) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        OpenFile open = acquire(file,false);
+        if(open == null) return records;
+        try {
+            for(UUID containerID : open.regionFile.getContainerIDs()){
+                if(records.size() >= max) break;
+                byte[] data = open.regionFile.read(containerID);
+                if(data != null) records.add(data);
+            }
+        } finally {
+            release(open);
+        }
+        return records;
+    }
+
+    public Set<UUID> getContainerIDs(File file) throws IOException {
+        OpenFile open = acquire(file,false);
+        if(open == null) return Collections.emptySet();
+        try {
+            return open.regionFile.getContainerIDs();
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * @return home position of every record stored in given region file
+     */
+    public Map<UUID,StoragePosition> getContainerPositions(File file) throws IOException {
+        Map<UUID,StoragePosition> positions = new HashMap<>();
+        String[] name = file.getName().split("\\.");
+        if(name.length != 4) return positions;
+        OpenFile open = acquire(file,false);
+        if(open == null) return positions;
+        Map<UUID,Integer> localChunks;
+        try {
+            localChunks = open.regionFile.getLocalChunks();
+        } finally {
+            release(open);
+        }
+        int regionX = Integer.parseInt(name[1]);
+        int regionZ = Integer.parseInt(name[2]);
+        String world = file.getParentFile().getName();
+        for(Map.Entry<UUID,Integer> entry : localChunks.entrySet()){
+            int localChunk = entry.getValue();
+            positions.put(entry.getKey(),new StoragePosition(world,(regionX << 5)+(localChunk & 31),(regionZ << 5)+(localChunk >> 5)));
+        }
+        return positions;
+    }
+
+    public File getRegionsFolder() {
+        return regionsFolder;
+    }
+
+    /**
+     * Closes every region file, nothing may use this cache anymore
+     */
+    public synchronized void closeAll(){
+        for(OpenFile open : openFiles.values()){
+            try {
+                open.regionFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        openFiles.clear();
+    }
+
+    private static class OpenFile {
+        private final RegionFile regionFile;
+        // guarded by the cache
+        private int users;
+        private boolean evicted;
+
+        private OpenFile(RegionFile regionFile){
+            this.regionFile = regionFile;
+        }
+    }
+}
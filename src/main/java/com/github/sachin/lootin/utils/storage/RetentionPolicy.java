@@ -0,0 +1,137 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Drops the loot data of players that didn't come back to a container for a long time, most containers are only
+ * ever looted once by most players. Applied when containers are loaded or leave the cache and by the bulk
+ * compaction of /lootin storage compact. Data of online players is never dropped.
+ */
+public class RetentionPolicy {
+
+    public enum Basis {
+        // time since the player last got loot from the container
+        LAST_LOOT,
+        // same as LAST_LOOT, but players that were online within the time keep their data
+        LAST_SEEN
+    }
+
+    private static final int COMPACTION_BATCH_SIZE = 256;
+
+    private final long maxAge;
+    private final Basis basis;
+    private final Set<UUID> onlinePlayers = ConcurrentHashMap.newKeySet();
+    private final Map<UUID,Long> lastSeen = new ConcurrentHashMap<>();
+
+    public RetentionPolicy(int maxAgeDays, Basis basis){
+        this.maxAge = TimeUnit.DAYS.toMillis(Math.max(1,maxAgeDays));
+        this.basis = basis;
+        for(Player player : Bukkit.getOnlinePlayers()){
+            onlinePlayers.add(player.getUniqueId());
+        }
+    }
+
+    /**
+     * Removes every expired player from given container, has to be called by the thread owning the container
+     * @return number of players that got removed
+     */
+    public int apply(LootinContainer container){
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<PlayerLootData> iterator = container.getPlayerDataMap().values().iterator();
+        while (iterator.hasNext()){
+            if(isExpired(iterator.next(),now)){
+                iterator.remove();
+                removed++;
+            }
+        }
+        if(removed > 0){
+            container.markDirty();
+            StorageStats.recordExpiredPlayers(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Applies this policy to every stored container. Containers are loaded and rewritten on the storage writer
+     * thread in small batches, so compaction is ordered with regular saves. Containers with a save queued are
+     * skipped, the policy is applied to them when they leave the cache.
+     * Blocks the calling thread while the stored containers are listed.
+     * @param callback receives the number of rewritten containers and removed players once everything is done
+     */
+    public void compactAll(StorageBackend backend, ContainerWriteQueue writeQueue, BiConsumer<Long,Long> callback) throws IOException {
+        Map<UUID,StoragePosition> containers = new LinkedHashMap<>();
+        backend.forEachContainer(containers::put);
+        AtomicLong rewritten = new AtomicLong();
+        AtomicLong removedPlayers = new AtomicLong();
+        List<Map.Entry<UUID,StoragePosition>> batch = new ArrayList<>(COMPACTION_BATCH_SIZE);
+        for(Map.Entry<UUID,StoragePosition> entry : containers.entrySet()){
+            batch.add(entry);
+            if(batch.size() == COMPACTION_BATCH_SIZE){
+                compactBatch(batch,backend,writeQueue,rewritten,removedPlayers);
+                batch = new ArrayList<>(COMPACTION_BATCH_SIZE);
+            }
+        }
+        compactBatch(batch,backend,writeQueue,rewritten,removedPlayers);
+        writeQueue.runAfterQueued(() -> callback.accept(rewritten.get(),removedPlayers.get()));
+    }
+
+    private void compactBatch(List<Map.Entry<UUID,StoragePosition>> batch, StorageBackend backend, ContainerWriteQueue writeQueue, AtomicLong rewritten, AtomicLong removedPlayers){
+        if(batch.isEmpty()) return;
+        writeQueue.runAfterQueued(() -> {
+            for(Map.Entry<UUID,StoragePosition> entry : batch){
+                if(writeQueue.isPending(entry.getKey())) continue;
+                try {
+                    LootinContainer container = backend.load(entry.getKey(),entry.getValue());
+                    if(container == null) continue;
+                    int removed = apply(container);
+                    if(removed > 0){
+                        StorageConverterUtility.journal(container);
+                        backend.save(container);
+                        StorageConverterUtility.recordSave(container);
+                        rewritten.incrementAndGet();
+                        removedPlayers.addAndGet(removed);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    public boolean isExpired(PlayerLootData playerData, long now){
+        UUID playerID = playerData.getPlayerID();
+        if(now-playerData.getLastLootTime() < maxAge || onlinePlayers.contains(playerID)) return false;
+        return basis == Basis.LAST_LOOT || now-getLastSeen(playerID) >= maxAge;
+    }
+
+    public void playerJoined(UUID playerID){
+        onlinePlayers.add(playerID);
+    }
+
+    public void playerQuit(UUID playerID){
+        onlinePlayers.remove(playerID);
+        lastSeen.put(playerID,System.currentTimeMillis());
+    }
+
+    public Basis getBasis() {
+        return basis;
+    }
+
+    private long getLastSeen(UUID playerID){
+        // reading the last played time can hit the player data file, so it is only done once per player
+        return lastSeen.computeIfAbsent(playerID,id -> {
+            OfflinePlayer player = Bukkit.getOfflinePlayer(id);
+            return player != null ? player.getLastPlayed() : 0L;
+        });
+    }
+}
@@ -0,0 +1,308 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Stores containers in a single embedded SQLite database file, using the driver bundled with the server.
+ * Player data lives in its own table keyed by (container, player) so saving a container only upserts the
+ * players that changed, and the player index allows cheap per-player lookups.
+ */
+public class SqliteStorageBackend implements StorageBackend {
+
+    private static final int PAGE_SIZE = 256;
+
+    private final Connection connection;
+
+    public SqliteStorageBackend(File databaseFile) throws IOException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            this.connection = DriverManager.getConnection("jdbc:sqlite:"+databaseFile.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS lootin_containers (" +
+                        "container_id BLOB PRIMARY KEY," +
+                        "world TEXT," +
+                        "chunk_x INTEGER," +
+                        "chunk_z INTEGER," +
+                        "loottable TEXT," +
+                        "default_loot BLOB," +
+                        "block_container INTEGER NOT NULL DEFAULT 0)");
+                if(!hasColumn(statement,"lootin_containers","block_container")){
+                    statement.execute("ALTER TABLE lootin_containers ADD COLUMN block_container INTEGER NOT NULL DEFAULT 0");
+                }
+                statement.execute("CREATE INDEX IF NOT EXISTS lootin_containers_chunk ON lootin_containers (world, chunk_x, chunk_z)");
+                statement.execute("CREATE TABLE IF NOT EXISTS lootin_player_loot (" +
+                        "container_id BLOB NOT NULL," +
+                        "player_id BLOB NOT NULL," +
+                        "last_loot_time INTEGER NOT NULL," +
+                        "refills INTEGER NOT NULL," +
+                        "items BLOB," +
+                        "PRIMARY KEY (container_id, player_id))");
+                statement.execute("CREATE INDEX IF NOT EXISTS lootin_player_loot_player ON lootin_player_loot (player_id)");
+            }
+            connection.setAutoCommit(false);
+        } catch (ClassNotFoundException | SQLException e) {
+            throw new IOException("Could not open lootin database "+databaseFile.getName(),e);
+        }
+    }
+
+    @Override
+    public synchronized LootinContainer load(UUID containerID, StoragePosition position) throws IOException {
+        try {
+            LootinContainer container = null;
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT world, chunk_x, chunk_z, loottable, default_loot, block_container FROM lootin_containers WHERE container_id = ?")) {
+                statement.setBytes(1,toBytes(containerID));
+                try (ResultSet result = statement.executeQuery()) {
+                    if(result.next()){
+                        container = new LootinContainer(containerID);
+                        String world = result.getString(1);
+                        container.setPosition(world != null ? new StoragePosition(world,result.getInt(2),result.getInt(3)) : position);
+                        container.setLoottable(result.getString(4));
+                        byte[] defaultLoot = result.getBytes(5);
+                        if(defaultLoot != null){
+                            container.setDefaultLoot(ContainerCodec.decodeItems(defaultLoot));
+                        }
+                        container.setBlockContainer(result.getInt(6) != 0);
+                    }
+                }
+            }
+            if(container == null) return null;
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT player_id, last_loot_time, refills, items FROM lootin_player_loot WHERE container_id = ?")) {
+                statement.setBytes(1,toBytes(containerID));
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()){
+                        UUID playerID = fromBytes(result.getBytes(1));
+                        byte[] items = result.getBytes(4);
+                        container.getPlayerDataMap().put(playerID,new PlayerLootData(playerID,
+                                items != null ? ContainerCodec.decodeItems(items) : null,result.getLong(2),result.getInt(3)));
+                    }
+                }
+            }
+            connection.commit();
+            container.markClean();
+            return container;
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not load container "+containerID,e);
+        }
+    }
+
+    @Override
+    public void save(LootinContainer container) throws IOException {
+        saveAll(Collections.singletonList(container));
+    }
+
+    /**
+     * Writes all given containers in one transaction. Containers whose player map changed get their player
+     * rows replaced, otherwise only the players that were modified are upserted.
+     */
+    @Override
+    public synchronized void saveAll(Collection<LootinContainer> containers) throws IOException {
+        try (PreparedStatement upsertContainer = connection.prepareStatement(
+                     "INSERT INTO lootin_containers (container_id, world, chunk_x, chunk_z, loottable, default_loot, block_container) VALUES (?,?,?,?,?,?,?) " +
+                     "ON CONFLICT(container_id) DO UPDATE SET world = excluded.world, chunk_x = excluded.chunk_x, chunk_z = excluded.chunk_z, " +
+                     "loottable = excluded.loottable, default_loot = excluded.default_loot, block_container = excluded.block_container");
+             PreparedStatement deletePlayers = connection.prepareStatement("DELETE FROM lootin_player_loot WHERE container_id = ?");
+             PreparedStatement upsertPlayer = connection.prepareStatement(
+                     "INSERT INTO lootin_player_loot (container_id, player_id, last_loot_time, refills, items) VALUES (?,?,?,?,?) " +
+                     "ON CONFLICT(container_id, player_id) DO UPDATE SET last_loot_time = excluded.last_loot_time, " +
+                     "refills = excluded.refills, items = excluded.items")) {
+            for(LootinContainer container : containers){
+                byte[] containerID = toBytes(container.getContainerID());
+                boolean fullRewrite = container.isStructureDirty();
+                if(fullRewrite){
+                    StoragePosition position = container.getPosition();
+                    upsertContainer.setBytes(1,containerID);
+                    upsertContainer.setString(2,position != null ? position.getWorld() : null);
+                    upsertContainer.setInt(3,position != null ? position.getChunkX() : 0);
+                    upsertContainer.setInt(4,position != null ? position.getChunkZ() : 0);
+                    upsertContainer.setString(5,container.getLoottable());
+                    upsertContainer.setBytes(6,ContainerCodec.encodeItems(container.getDefaultLoot()));
+                    upsertContainer.setInt(7,container.isBlockContainer() ? 1 : 0);
+                    upsertContainer.addBatch();
+                    deletePlayers.setBytes(1,containerID);
+                    deletePlayers.addBatch();
+                }
+                for(PlayerLootData playerData : container.getPlayerDataMap().values()){
+                    if(!fullRewrite && !playerData.isDirty()) continue;
+                    upsertPlayer.setBytes(1,containerID);
+                    upsertPlayer.setBytes(2,toBytes(playerData.getPlayerID()));
+                    upsertPlayer.setLong(3,playerData.getLastLootTime());
+                    upsertPlayer.setInt(4,playerData.getRefills());
+                    upsertPlayer.setBytes(5,ContainerCodec.encodeItems(playerData.peekItems()));
+                    upsertPlayer.addBatch();
+                }
+            }
+            upsertContainer.executeBatch();
+            deletePlayers.executeBatch();
+            upsertPlayer.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not save "+containers.size()+" containers",e);
+        }
+    }
+
+    @Override
+    public synchronized long delete(UUID containerID, StoragePosition position) throws IOException {
+        try (PreparedStatement deletePlayers = connection.prepareStatement("DELETE FROM lootin_player_loot WHERE container_id = ?");
+             PreparedStatement deleteContainer = connection.prepareStatement("DELETE FROM lootin_containers WHERE container_id = ?")) {
+            byte[] id = toBytes(containerID);
+            deletePlayers.setBytes(1,id);
+            deletePlayers.executeUpdate();
+            deleteContainer.setBytes(1,id);
+            int deleted = deleteContainer.executeUpdate();
+            connection.commit();
+            return deleted;
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not delete container "+containerID,e);
+        }
+    }
+
+    @Override
+    public synchronized Set<UUID> getBlockContainerIDs(StoragePosition chunk) throws IOException {
+        Set<UUID> containers = new HashSet<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT container_id FROM lootin_containers WHERE world = ? AND chunk_x = ? AND chunk_z = ? AND block_container = 1")) {
+            statement.setString(1,chunk.getWorld());
+            statement.setInt(2,chunk.getChunkX());
+            statement.setInt(3,chunk.getChunkZ());
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    containers.add(fromBytes(result.getBytes(1)));
+                }
+            }
+            connection.commit();
+            return containers;
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not query containers of chunk "+chunk.serialize(),e);
+        }
+    }
+
+    @Override
+    public synchronized void forEachContainer(BiConsumer<UUID,StoragePosition> consumer) throws IOException {
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT container_id, world, chunk_x, chunk_z FROM lootin_containers")) {
+            while (result.next()){
+                String world = result.getString(2);
+                consumer.accept(fromBytes(result.getBytes(1)),world != null ? new StoragePosition(world,result.getInt(3),result.getInt(4)) : null);
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not list stored containers",e);
+        }
+    }
+
+    /**
+     * Pages through the containers ordered by id, so no result set is open while the consumer runs
+     */
+    @Override
+    public void loadEach(Consumer<LootinContainer> consumer) throws IOException {
+        byte[] lastID = new byte[0];
+        while (true){
+            List<UUID> page = new ArrayList<>(PAGE_SIZE);
+            synchronized (this){
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT container_id FROM lootin_containers WHERE container_id > ? ORDER BY container_id LIMIT "+PAGE_SIZE)) {
+                    statement.setBytes(1,lastID);
+                    try (ResultSet result = statement.executeQuery()) {
+                        while (result.next()){
+                            page.add(fromBytes(result.getBytes(1)));
+                        }
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    rollback();
+                    throw new IOException("Could not list stored containers",e);
+                }
+            }
+            for(UUID containerID : page){
+                LootinContainer container = load(containerID,null);
+                if(container != null) consumer.accept(container);
+            }
+            if(page.size() < PAGE_SIZE) return;
+            lastID = toBytes(page.get(page.size()-1));
+        }
+    }
+
+    @Override
+    public synchronized void forEachContainerID(Consumer<UUID> consumer) throws IOException {
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT container_id FROM lootin_containers")) {
+            while (result.next()){
+                consumer.accept(fromBytes(result.getBytes(1)));
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not list stored containers",e);
+        }
+    }
+
+    @Override
+    public synchronized Map<UUID,StoragePosition> getLootedContainers(UUID playerID) throws IOException {
+        Map<UUID,StoragePosition> containers = new LinkedHashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT c.container_id, c.world, c.chunk_x, c.chunk_z FROM lootin_player_loot p JOIN lootin_containers c ON c.container_id = p.container_id WHERE p.player_id = ?")) {
+            statement.setBytes(1,toBytes(playerID));
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    String world = result.getString(2);
+                    containers.put(fromBytes(result.getBytes(1)),world != null ? new StoragePosition(world,result.getInt(3),result.getInt(4)) : null);
+                }
+            }
+            connection.commit();
+            return containers;
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not query containers of player "+playerID,e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean hasColumn(Statement statement, String table, String column) throws SQLException {
+        try (ResultSet result = statement.executeQuery("PRAGMA table_info("+table+")")) {
+            while (result.next()){
+                if(column.equalsIgnoreCase(result.getString("name"))) return true;
+            }
+        }
+        return false;
+    }
+
+    private void rollback(){
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static byte[] toBytes(UUID uuid){
+        return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+    }
+
+    static UUID fromBytes(byte[] bytes){
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(),buffer.getLong());
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Persistence layer for lootin containers.
+ * Implementations must be safe to call from the storage writer thread while the server thread loads containers.
+ */
+public interface StorageBackend {
+
+    /**
+     * @param position home position of the container, can be null for containers that never had one
+     * @return the stored container or null if nothing is stored for given id
+     */
+    LootinContainer load(UUID containerID, StoragePosition position) throws IOException;
+
+    void save(LootinContainer container) throws IOException;
+
+    /**
+     * @return number of bytes reclaimed, 0 if nothing was stored
+     */
+    long delete(UUID containerID, StoragePosition position) throws IOException;
+
+    /**
+     * Loads several containers at once, ids without stored data are left out of the result
+     */
+    default Map<UUID,LootinContainer> loadAll(Map<UUID,StoragePosition> containers) throws IOException {
+        Map<UUID,LootinContainer> loaded = new HashMap<>();
+        for(Map.Entry<UUID,StoragePosition> entry : containers.entrySet()){
+            LootinContainer container = load(entry.getKey(),entry.getValue());
+            if(container != null){
+                loaded.put(entry.getKey(),container);
+            }
+        }
+        return loaded;
+    }
+
+    default void saveAll(Collection<LootinContainer> containers) throws IOException {
+        for(LootinContainer container : containers){
+            save(container);
+        }
+    }
+
+    /**
+     * @return ids of the stored chest and barrel containers whose home is given chunk
+     */
+    Set<UUID> getBlockContainerIDs(StoragePosition chunk) throws IOException;
+
+    /**
+     * Passes the id of every stored container to given consumer, used to build the {@link ContainerIdIndex}
+     */
+    default void forEachContainerID(Consumer<UUID> consumer) throws IOException {
+        forEachContainer((containerID, position) -> consumer.accept(containerID));
+    }
+
+    /**
+     * Passes the id and home position of every stored container to given consumer,
+     * the position is null for containers stored without one
+     */
+    void forEachContainer(BiConsumer<UUID,StoragePosition> consumer) throws IOException;
+
+    /**
+     * Loads every stored container one after another, only a small batch of ids is held in memory at a time
+     */
+    void loadEach(Consumer<LootinContainer> consumer) throws IOException;
+
+    /**
+     * @return id and home position of every stored container given player has loot data in,
+     * backends without a player index load every container to find them
+     */
+    default Map<UUID,StoragePosition> getLootedContainers(UUID playerID) throws IOException {
+        Map<UUID,StoragePosition> containers = new LinkedHashMap<>();
+        loadEach(container -> {
+            if(container.getPlayerDataMap().containsKey(playerID)){
+                containers.put(container.getContainerID(),container.getPosition());
+            }
+        });
+        return containers;
+    }
+
+    /**
+     * Makes every write so far durable, backends that don't batch their writes have nothing to do
+     */
+    default void sync() throws IOException {}
+
+    void close();
+}
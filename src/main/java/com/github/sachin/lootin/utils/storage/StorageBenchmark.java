@@ -0,0 +1,104 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Side by side measurements of the storage codecs and read paths on a sample of real records, used by /lootin storage benchmark
+ */
+public class StorageBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * Compares gzip, plain deflate and deflate with the active dictionary on given uncompressed records
+     * @return one line per codec with total size, ratio and average time per record
+     */
+    public static List<String> compareCompression(List<byte[]> samples, RecordCompressor compressor) throws IOException {
+        List<String> lines = new ArrayList<>();
+        long rawSize = 0;
+        for(byte[] sample : samples){
+            rawSize += sample.length;
+        }
+        lines.add("Records: "+samples.size()+", uncompressed: "+rawSize+" bytes");
+        lines.add(measure("gzip",samples,rawSize,FileStorageBackend::compress,FileStorageBackend::decompress));
+        lines.add(measure("deflate",samples,rawSize,data -> compressor.compress(data,0),compressor::decompress));
+        int dictionaryID = compressor.getActiveDictionaryID();
+        if(dictionaryID != 0){
+            lines.add(measure("dictionary #"+dictionaryID,samples,rawSize,data -> compressor.compress(data,dictionaryID),compressor::decompress));
+        }
+        return lines;
+    }
+
+    /**
+     * Reads up to max stored records with the heap read path that was used before and the mapped one
+     * {@link FileStorageBackend#load(UUID, StoragePosition)} uses now. Records are only read and inflated, not decoded.
+     * @return one line per read path with average time per record and throughput
+     */
+    public static List<String> compareReadPaths(FileStorageBackend backend, int max) throws IOException {
+        List<Map.Entry<UUID,StoragePosition>> records = new ArrayList<>();
+        backend.forEachContainer((containerID,position) -> records.add(new AbstractMap.SimpleEntry<>(containerID,position)));
+        Collections.shuffle(records);
+        List<Map.Entry<UUID,StoragePosition>> sample = records.subList(0,Math.min(max,records.size()));
+        List<String> lines = new ArrayList<>();
+        lines.add("Records: "+sample.size()+" of "+records.size());
+        lines.add(measureReads("heap",sample,backend::readRecordToHeap));
+        lines.add(measureReads("mapped",sample,backend::readRecordMapped));
+        return lines;
+    }
+
+    private static String measureReads(String name, List<Map.Entry<UUID,StoragePosition>> sample, RecordRead read) throws IOException {
+        // the first pass warms up and brings the files into the page cache for both paths
+        for(Map.Entry<UUID,StoragePosition> entry : sample){
+            read.apply(entry.getKey(),entry.getValue());
+        }
+        long bytes = 0;
+        long start = System.nanoTime();
+        for(int round=0;round<ROUNDS;round++){
+            for(Map.Entry<UUID,StoragePosition> entry : sample){
+                bytes += Math.max(0,read.apply(entry.getKey(),entry.getValue()));
+            }
+        }
+        long time = Math.max(1,System.nanoTime()-start);
+        long operations = (long) ROUNDS*Math.max(1,sample.size());
+        return String.format("%s: %.1f us per record, %.1f MB/s uncompressed",name,time/1000.0/operations,bytes*1000.0/time);
+    }
+
+    private static String measure(String name, List<byte[]> samples, long rawSize, Codec compress, Codec decompress) throws IOException {
+        List<byte[]> compressed = new ArrayList<>(samples.size());
+        long size = 0;
+        for(byte[] sample : samples){
+            byte[] data = compress.apply(sample);
+            compressed.add(data);
+            size += data.length;
+        }
+        // first pass above warms up, the timed rounds below are averaged
+        long compressTime = 0;
+        long decompressTime = 0;
+        for(int round=0;round<ROUNDS;round++){
+            long start = System.nanoTime();
+            for(byte[] sample : samples){
+                compress.apply(sample);
+            }
+            compressTime += System.nanoTime()-start;
+            start = System.nanoTime();
+            for(byte[] data : compressed){
+                decompress.apply(data);
+            }
+            decompressTime += System.nanoTime()-start;
+        }
+        long operations = (long) ROUNDS*Math.max(1,samples.size());
+        return String.format("%s: %d bytes (%.1f%%), compress %.1f us, decompress %.1f us per record",
+                name,size,rawSize == 0 ? 0 : size*100.0/rawSize,compressTime/1000.0/operations,decompressTime/1000.0/operations);
+    }
+
+    @FunctionalInterface
+    private interface RecordRead {
+        int apply(UUID containerID, StoragePosition position) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Codec {
+        byte[] apply(byte[] data) throws IOException;
+    }
+}
@@ -8,24 +8,32 @@ import com.github.sachin.lootin.utils.storage.LootinContainer;
 import com.github.sachin.lootin.utils.storage.PlayerLootData;
 import com.jeff_media.morepersistentdatatypes.DataType;
 import org.bukkit.NamespacedKey;
+import org.bukkit.block.BlockState;
 import org.bukkit.block.Container;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.persistence.PersistentDataContainer;
 import org.bukkit.persistence.PersistentDataHolder;
 import org.bukkit.persistence.PersistentDataType;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class StorageConverterUtility {
 
     private static final Lootin plugin = Lootin.getPlugin();
+    private static volatile File dataFile;
+    // reads of containers that are not cached yet, see getContainerData
+    private static final Map<UUID,CompletableFuture<LootinContainer>> loading = new ConcurrentHashMap<>();
 
 
     public static LootinContainer convert(PersistentDataHolder holder){
@@ -36,7 +44,7 @@ public class StorageConverterUtility {
             if(key.getNamespace().equals("lootin") && isValidUUID(key.getKey())){
                 if(holder.getPersistentDataContainer().has(key, PersistentDataType.STRING)){
                     List<ItemStack> oldItems = ItemSerializer.deserialize(holder.getPersistentDataContainer().get(key,PersistentDataType.STRING));
-                    ChestUtils.updatePersistentStorageTypes(holder.getPersistentDataContainer(),((Container)holder).getInventory(),oldItems,key);
+                    ChestUtils.updatePersistentStorageTypes(holder.getPersistentDataContainer(),((InventoryHolder)holder).getInventory(),oldItems,key);
                 }
                 if(holder.getPersistentDataContainer().has(key,DataType.ITEM_STACK_ARRAY)){
                     ItemStack[] items = holder.getPersistentDataContainer().get(key, DataType.ITEM_STACK_ARRAY);
@@ -47,134 +55,342 @@ public class StorageConverterUtility {
                 }
             }
         }
+        lootinContainer.markDirty();
+        lootinContainer.setBlockContainer(holder instanceof BlockState);
         holder.getPersistentDataContainer().set(LConstants.STORAGE_DATA_KEY,DataType.UUID,containerID);
+        StoragePosition position = StoragePosition.of(holder);
+        if(position != null){
+            holder.getPersistentDataContainer().set(LConstants.STORAGE_POSITION_KEY,PersistentDataType.STRING,position.serialize());
+            lootinContainer.setPosition(position);
+        }
         if(holder instanceof Container){
             ((Container)holder).update();
         }
         plugin.cachedContainers.put(containerID,lootinContainer);
+        // the old per-player keys are gone from the PDC now
+        journal(lootinContainer);
         return lootinContainer;
     }
 
 
 
+    /**
+     * Converts a container that still stores loot the old way in its PDC without waiting for it to be opened,
+     * used by {@link LegacyMigration}
+     * @return true if anything had to be converted
+     */
+    public static boolean migrateLegacy(PersistentDataHolder holder){
+        PersistentDataContainer data = holder.getPersistentDataContainer();
+        boolean migrated = false;
+        if(data.has(LConstants.DATA_KEY,PersistentDataType.STRING) && holder instanceof InventoryHolder){
+            List<ItemStack> items = ItemSerializer.deserialize(data.get(LConstants.DATA_KEY,PersistentDataType.STRING));
+            ChestUtils.updatePersistentStorageTypes(data,((InventoryHolder)holder).getInventory(),items,LConstants.DATA_KEY);
+            migrated = true;
+        }
+        if(!data.has(LConstants.STORAGE_DATA_KEY,DataType.UUID) && hasLegacyPlayerLoot(data)){
+            LootinContainer lootinContainer = convert(holder);
+            // saved by the next cache sweep, a migration would fill the cache otherwise
+            plugin.cachedContainers.expireNow(lootinContainer.getContainerID());
+            migrated = true;
+        }
+        return migrated;
+    }
+
+    private static boolean hasLegacyPlayerLoot(PersistentDataContainer data){
+        for(NamespacedKey key : data.getKeys()){
+            if(key.getNamespace().equals("lootin") && isValidUUID(key.getKey())) return true;
+        }
+        return false;
+    }
+
     public static void update(PersistentDataHolder holder, String key,List<ItemStack> items){
         UUID containerID = holder.getPersistentDataContainer().get(LConstants.STORAGE_DATA_KEY,DataType.UUID);
         UUID playerID = UUID.fromString(key);
-        LootinContainer lootinContainer = getContainerData(containerID);
-        PlayerLootData playerData = lootinContainer.getPlayerDataMap().get(playerID);
-        if(playerData != null){
+        LootinContainer lootinContainer = getContainerData(holder);
+        synchronized (lootinContainer){
+            if((lootinContainer.getDefaultLoot() == null || lootinContainer.getDefaultLoot().isEmpty()) && holder.getPersistentDataContainer().has(LConstants.DATA_KEY,DataType.ITEM_STACK_ARRAY)){
+                // player loot is stored as changes against this, see ContainerCodec
+                lootinContainer.setDefaultLoot(LootinContainer.copyItems(Arrays.asList(holder.getPersistentDataContainer().get(LConstants.DATA_KEY,DataType.ITEM_STACK_ARRAY))));
+            }
+            PlayerLootData playerData = lootinContainer.getPlayerDataMap().get(playerID);
+            if(playerData == null){
+                playerData = new PlayerLootData(playerID);
+                playerData.setLastLootTime(System.currentTimeMillis());
+            }
             playerData.setItems(items);
-        }else{
-            playerData = new PlayerLootData(playerID,items,System.currentTimeMillis(),0);
+            lootinContainer.getPlayerDataMap().put(playerID,playerData);
+            if(plugin.getJournal() != null){
+                plugin.getJournal().logPlayer(lootinContainer,playerData);
+            }
         }
-        lootinContainer.getPlayerDataMap().put(playerID,playerData);
-        lootinContainer.resetClosingTimer();
-        plugin.cachedContainers.put(containerID,lootinContainer);
+        // only put back the instance that got changed, it may have left the cache and a newer copy got cached since
+        LootinContainer cached = plugin.cachedContainers.putIfAbsent(containerID,lootinContainer);
+        if(cached == null) return;
+        if(cached == lootinContainer){
+            plugin.cachedContainers.replace(containerID,lootinContainer,lootinContainer);
+            return;
+        }
+        // the newer copy doesn't have this change yet
+        PlayerLootData merged;
+        synchronized (lootinContainer){
+            merged = lootinContainer.getPlayerDataMap().get(playerID).snapshot();
+        }
+        merged.markDirty();
+        synchronized (cached){
+            if((cached.getDefaultLoot() == null || cached.getDefaultLoot().isEmpty()) && lootinContainer.getDefaultLoot() != null){
+                cached.setDefaultLoot(LootinContainer.copyItems(lootinContainer.getDefaultLoot()));
+            }
+            cached.getPlayerDataMap().put(playerID,merged);
+            if(plugin.getJournal() != null){
+                plugin.getJournal().logPlayer(cached,merged);
+            }
+        }
+        plugin.cachedContainers.replace(containerID,cached,cached);
+    }
+
+    /**
+     * Records the whole container in the journal, for changes other than a player's loot being updated
+     */
+    public static void journal(LootinContainer lootinContainer){
+        if(plugin.getJournal() != null){
+            plugin.getJournal().logContainer(lootinContainer);
+        }
+    }
+
+    /**
+     * Hands the container over to the background writer, only a snapshot is taken on the calling thread
+     */
+    public static void saveAsync(LootinContainer lootinContainer){
+        if(!lootinContainer.isDirty()){
+            StorageStats.recordSkippedWrite();
+            return;
+        }
+        plugin.getWriteQueue().submit(lootinContainer);
     }
 
     public static void save(LootinContainer lootinContainer){
-        YamlConfiguration yaml = new YamlConfiguration();
-        for(UUID key : lootinContainer.getPlayerDataMap().keySet()){
-            PlayerLootData playerData = lootinContainer.getPlayerDataMap().get(key);
-            yaml.set(key.toString()+".items",playerData.getItems());
-            yaml.set(key.toString()+".last-loot-time",playerData.getLastLootTime());
-            yaml.set(key.toString()+".refills",playerData.getRefills());
+        try {
+            plugin.getStorageBackend().save(lootinContainer);
+            plugin.getContainerIndex().add(lootinContainer.getContainerID());
+            recordSave(lootinContainer);
+            StorageStats.recordWrite();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Tells the snapshots that given container was written, for writes that don't go through {@link #save(LootinContainer)}
+     */
+    public static void recordSave(LootinContainer lootinContainer){
+        if(plugin.getSnapshots() != null){
+            plugin.getSnapshots().recordSave(lootinContainer);
         }
-        saveToFile(yaml,lootinContainer.getContainerID());
+    }
 
+    /**
+     * Loads the container data of given lootin container, storing its home position in the PDC if it's missing
+     */
+    public static LootinContainer getContainerData(PersistentDataHolder holder){
+        UUID containerID = holder.getPersistentDataContainer().get(LConstants.STORAGE_DATA_KEY,DataType.UUID);
+        StoragePosition position = StoragePosition.deserialize(holder.getPersistentDataContainer().get(LConstants.STORAGE_POSITION_KEY,PersistentDataType.STRING));
+        if(position == null){
+            position = StoragePosition.of(holder);
+            if(position != null){
+                holder.getPersistentDataContainer().set(LConstants.STORAGE_POSITION_KEY,PersistentDataType.STRING,position.serialize());
+                if(holder instanceof Container){
+                    ((Container)holder).update();
+                }
+            }
+        }
+        LootinContainer container = getContainerData(containerID,position);
+        container.setBlockContainer(holder instanceof BlockState);
+        return container;
     }
 
     public static LootinContainer getContainerData(UUID containerID){
-        LootinContainer container = new LootinContainer(containerID);
-        if(plugin.cachedContainers.containsKey(containerID)){
-            return plugin.cachedContainers.get(containerID);
+        return getContainerData(containerID,null);
+    }
+
+    /**
+     * Returns the cached container or loads it. Concurrent requests for a container that is not cached share a
+     * single read, the first one reads it and the others wait for that read, so the container is never read twice
+     * and the others can't replace the instance the first one cached. Prefetches take part in this as well.
+     */
+    public static LootinContainer getContainerData(UUID containerID,StoragePosition position){
+        while (true){
+            LootinContainer cached = plugin.cachedContainers.get(containerID);
+            if(cached != null) return cached;
+            CompletableFuture<LootinContainer> future = new CompletableFuture<>();
+            CompletableFuture<LootinContainer> running = loading.putIfAbsent(containerID,future);
+            if(running != null){
+                StorageStats.recordCoalescedLoad();
+                LootinContainer shared = running.join();
+                if(shared != null) return cacheLoaded(shared);
+                // the other read had nothing to share, like a container that is not stored yet, so try again
+                continue;
+            }
+            return readContainer(containerID,position,future);
         }
-        File file = new File(getDataFile(),containerID.toString());
-        if(!file.exists()) return container;
+    }
+
+    /**
+     * Reads a container that is not cached, completing given future with what other requests can share
+     */
+    private static LootinContainer readContainer(UUID containerID,StoragePosition position,CompletableFuture<LootinContainer> future){
+        LootinContainer shared = null;
         try {
-            byte[] compressedData = readFromFile(file);
-            byte[] decompressedData = decompress(compressedData);
-            YamlConfiguration yaml = deserizeData(decompressedData);
-            for(String key : yaml.getKeys(false)){
-                UUID uuid = UUID.fromString(key);
-                PlayerLootData playerData = new PlayerLootData(uuid);
-                if(yaml.isList(key)){
-                    playerData.setItems((List<ItemStack>) yaml.getList(key));
-                    playerData.setLastLootTime(System.currentTimeMillis());
-                    playerData.setRefills(0);
-                }
-                else if(yaml.isConfigurationSection(key)){
-                    ConfigurationSection subConfig = yaml.getConfigurationSection(key);
-                    playerData.setItems((List<ItemStack>) subConfig.getList("items"));
-                    playerData.setLastLootTime(subConfig.getLong("last-loot-time"));
-                    playerData.setRefills(subConfig.getInt("refills"));
-                }
-                container.getPlayerDataMap().put(uuid,playerData);
+            LootinContainer pending = plugin.getWriteQueue().getPending(containerID);
+            if(pending != null){
+                // the queued write already covers everything in this copy
+                pending.markClean();
+                shared = cacheLoaded(pending);
+                return shared;
             }
-            plugin.cachedContainers.put(containerID,container);
-//            file.delete();
-            return container;
+            if(!plugin.getContainerIndex().mightContain(containerID)){
+                StorageStats.recordIndexMiss();
+                return newContainer(containerID,position);
+            }
+            LootinContainer container = plugin.getStorageBackend().load(containerID,position);
+            if(container == null){
+                return newContainer(containerID,position);
+            }
+            StorageStats.recordLoad();
+            shared = cacheLoaded(container);
+            return shared;
         } catch (IOException e) {
             e.printStackTrace();
+            LootinContainer container = new LootinContainer(containerID);
+            container.setPosition(position);
             return container;
+        } finally {
+            finishLoad(containerID,future,shared);
         }
     }
 
+    /**
+     * Puts a container read from storage into the cache unless another copy got there first
+     * @return the cached instance
+     */
+    static LootinContainer cacheLoaded(LootinContainer container){
+        LootinContainer cached = plugin.cachedContainers.putIfAbsent(container.getContainerID(),container);
+        if(cached != null) return cached;
+        applyRetention(container);
+        return container;
+    }
 
-    private static byte[] serializeData(YamlConfiguration yaml) throws IOException {
-        return yaml.saveToString().getBytes(StandardCharsets.UTF_8);
+    /**
+     * Registers the caller as the one reading given container
+     * @return the future to complete with {@link #finishLoad}, or null if another read of it is running
+     */
+    static CompletableFuture<LootinContainer> beginLoad(UUID containerID){
+        CompletableFuture<LootinContainer> future = new CompletableFuture<>();
+        return loading.putIfAbsent(containerID,future) == null ? future : null;
     }
 
-    private static YamlConfiguration deserizeData(byte[] data){
-        String yamlString = new String(data,StandardCharsets.UTF_8);
-        return YamlConfiguration.loadConfiguration(new StringReader(yamlString));
+    /**
+     * Hands the result of a read to everyone waiting for it
+     * @param container the container read from storage, or null to let the waiting requests read it themselves
+     */
+    static void finishLoad(UUID containerID,CompletableFuture<LootinContainer> future,LootinContainer container){
+        loading.remove(containerID,future);
+        future.complete(container);
     }
 
-    private static byte[] compress(byte[] data) throws IOException {
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        try (GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream)) {
-            gzipStream.write(data);
+    /**
+     * Drops the data of players that expired according to the retention policy, if there is one
+     */
+    public static void applyRetention(LootinContainer container){
+        if(plugin.getRetentionPolicy() != null){
+            int removed;
+            synchronized (container){
+                removed = plugin.getRetentionPolicy().apply(container);
+            }
+            // older journal entries of the removed players must not bring them back
+            if(removed > 0) journal(container);
         }
-        return byteStream.toByteArray();
     }
 
-    private static byte[] decompress(byte[] compressedData) throws IOException {
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(compressedData);
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        try (GZIPInputStream gzipStream = new GZIPInputStream(byteStream)) {
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = gzipStream.read(buffer)) > 0) {
-                outStream.write(buffer, 0, len);
+    /**
+     * Removes the loot data of given player from every container, so they can loot everything again or their
+     * data is gone. Stored containers are found through {@link StorageBackend#getLootedContainers(UUID)} and
+     * rewritten on the storage writer thread. Blocks while the stored containers are looked up, so it must not
+     * be called on the server thread.
+     * @param callback receives the number of containers the player got removed from once everything is written
+     */
+    public static void forgetPlayer(UUID playerID,Consumer<Integer> callback) throws IOException {
+        Map<UUID,StoragePosition> containers = new LinkedHashMap<>(plugin.getStorageBackend().getLootedContainers(playerID));
+        // containers that were not saved yet since the player looted them
+        for(LootinContainer container : plugin.cachedContainers.values()){
+            if(container.getPlayerDataMap().containsKey(playerID)){
+                containers.putIfAbsent(container.getContainerID(),container.getPosition());
             }
         }
-        return outStream.toByteArray();
+        AtomicInteger removed = new AtomicInteger();
+        plugin.getWriteQueue().runAfterQueued(() -> {
+            for(Map.Entry<UUID,StoragePosition> entry : containers.entrySet()){
+                try {
+                    if(forgetPlayer(playerID,entry.getKey(),entry.getValue())){
+                        removed.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            callback.accept(removed.get());
+        });
     }
 
-    private static void saveToFile(YamlConfiguration yaml,UUID containerID){
+    private static boolean forgetPlayer(UUID playerID,UUID containerID,StoragePosition position) throws IOException {
+        CompletableFuture<LootinContainer> future = beginLoad(containerID);
+        if(future == null || plugin.cachedContainers.containsKey(containerID) || plugin.getWriteQueue().isPending(containerID)){
+            // in use, the cached instance has to change or its next save would bring the player back
+            if(future != null) finishLoad(containerID,future,null);
+            LootinContainer container = getContainerData(containerID,position);
+            synchronized (container){
+                if(container.getPlayerDataMap().remove(playerID) == null) return false;
+                container.markDirty();
+            }
+            journal(container);
+            saveAsync(container);
+            return true;
+        }
         try {
-            byte[] serializedData = serializeData(yaml);
-            byte[] compressedData = compress(serializedData);
-            writeToFile(compressedData,containerID);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            LootinContainer container = plugin.getStorageBackend().load(containerID,position);
+            if(container == null || container.getPlayerDataMap().remove(playerID) == null) return false;
+            // the set of players changed, backends that only write changed players have to replace them all
+            container.markDirty();
+            journal(container);
+            plugin.getStorageBackend().save(container);
+            recordSave(container);
+            return true;
+        } finally {
+            // reads that waited for this one read the container again and see it without the player
+            finishLoad(containerID,future,null);
         }
     }
 
-    private static void writeToFile(byte[] data,UUID containerID) throws IOException {
-        File file = new File(getDataFile(),containerID.toString());
-        if(!file.exists()) file.createNewFile();
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            fileOutputStream.write(data);
-        }
+    private static LootinContainer newContainer(UUID containerID,StoragePosition position){
+        LootinContainer container = new LootinContainer(containerID);
+        container.setPosition(position);
+        // nothing stored yet, the first save has to write the whole record
+        container.markDirty();
+        return container;
     }
 
-    private static byte[] readFromFile(File file) throws IOException {
-        try (FileInputStream fileInputStream = new FileInputStream(file)) {
-            byte[] data = new byte[fileInputStream.available()];
-            fileInputStream.read(data);
-            return data;
+    /**
+     * Removes the stored data of a container, the caller has to make sure it is not cached or queued anymore
+     * @return number of bytes reclaimed
+     */
+    public static long delete(UUID containerID,StoragePosition position) throws IOException {
+        if(plugin.getJournal() != null){
+            plugin.getJournal().logDelete(containerID,position);
+        }
+        plugin.getContainerIndex().remove(containerID);
+        if(plugin.getSnapshots() != null){
+            plugin.getSnapshots().recordDelete(containerID,position);
         }
+        return plugin.getStorageBackend().delete(containerID,position);
     }
 
     public static boolean isValidUUID(String string){
@@ -187,9 +403,11 @@ public class StorageConverterUtility {
     }
 
     public static File getDataFile(){
-        File file = new File(Lootin.getPlugin().getDataFolder(),"data");
-        if(!file.exists()){
-            file.mkdir();
+        File file = dataFile;
+        if(file == null){
+            file = new File(Lootin.getPlugin().getDataFolder(),"data");
+            file.mkdirs();
+            dataFile = file;
         }
         return file;
     }
@@ -0,0 +1,98 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.bukkit.Location;
+import org.bukkit.block.BlockState;
+import org.bukkit.entity.Entity;
+import org.bukkit.persistence.PersistentDataHolder;
+
+import java.util.Objects;
+
+/**
+ * Home chunk of a lootin container, used to group container records into region files.
+ * The position is stored in the container's PDC when the container is first assigned,
+ * so moving minecarts keep pointing at the region their data was written to.
+ */
+public class StoragePosition {
+
+    private final String world;
+    private final int chunkX;
+    private final int chunkZ;
+
+    public StoragePosition(String world, int chunkX, int chunkZ){
+        this.world = world;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+    }
+
+    public static StoragePosition of(PersistentDataHolder holder){
+        Location location = null;
+        if(holder instanceof BlockState){
+            location = ((BlockState)holder).getLocation();
+        }
+        else if(holder instanceof Entity){
+            location = ((Entity)holder).getLocation();
+        }
+        if(location == null || location.getWorld() == null) return null;
+        return new StoragePosition(location.getWorld().getName(),location.getBlockX() >> 4,location.getBlockZ() >> 4);
+    }
+
+    public static StoragePosition deserialize(String string){
+        if(string == null) return null;
+        String[] split = string.split(";");
+        if(split.length != 3) return null;
+        try {
+            return new StoragePosition(split[0],Integer.parseInt(split[1]),Integer.parseInt(split[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String serialize(){
+        return world+";"+chunkX+";"+chunkZ;
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public int getChunkX() {
+        return chunkX;
+    }
+
+    public int getChunkZ() {
+        return chunkZ;
+    }
+
+    public int getRegionX(){
+        return chunkX >> 5;
+    }
+
+    public int getRegionZ(){
+        return chunkZ >> 5;
+    }
+
+    /**
+     * @return index of the chunk inside its 32x32 region, same layout as vanilla .mca headers
+     */
+    public int getLocalChunkIndex(){
+        return (chunkX & 31) + (chunkZ & 31) * 32;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof StoragePosition)) return false;
+        StoragePosition that = (StoragePosition) o;
+        return chunkX == that.chunkX && chunkZ == that.chunkZ && world.equals(that.world);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(world, chunkX, chunkZ);
+    }
+
+    @Override
+    public String toString() {
+        return serialize();
+    }
+}
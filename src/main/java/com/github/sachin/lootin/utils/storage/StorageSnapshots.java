@@ -0,0 +1,336 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import static com.github.sachin.lootin.utils.storage.StorageTransferTool.*;
+
+/**
+ * Point-in-time backups of container storage in data/snapshots. Every save and delete of a container is
+ * recorded, a snapshot then only writes the containers that changed since the previous one into a gzipped
+ * NDJSON file in the format of /lootin export. Every few snapshots a full one is made that all later
+ * incremental snapshots build on, a restore replays the full snapshot and the incremental ones after it.
+ * The recorded changes are kept in changes.txt over a clean restart, after a crash the next snapshot is a full one.
+ */
+public class StorageSnapshots {
+
+    private static final String FULL = "-full";
+    private static final String INCREMENTAL = "-incremental";
+    private static final String EXTENSION = ".ndjson.gz";
+    private static final int RESTORE_BATCH_SIZE = 256;
+
+    private final Lootin plugin;
+    private final File folder;
+    private final int fullEvery;
+    private final int keepFull;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    // containers saved or deleted since the last snapshot, guarded by this
+    private Map<UUID,Change> changes = new HashMap<>();
+    private volatile boolean forceFull;
+
+    public StorageSnapshots(Lootin plugin, File folder, int fullEvery, int keepFull){
+        this.plugin = plugin;
+        this.folder = folder;
+        this.fullEvery = Math.max(1,fullEvery);
+        this.keepFull = Math.max(1,keepFull);
+        folder.mkdirs();
+        File changesFile = getChangesFile(folder);
+        if(changesFile.exists()){
+            try {
+                for(String line : Files.readAllLines(changesFile.toPath(),StandardCharsets.UTF_8)){
+                    String[] split = line.split(" ");
+                    if(split.length != 3) continue;
+                    changes.put(UUID.fromString(split[1]),new Change(StoragePosition.deserialize(split[2]),split[0].equals("d")));
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                plugin.getLogger().log(Level.WARNING,"Could not read the changes since the last snapshot, the next snapshot will be a full one",e);
+                forceFull = true;
+            }
+            changesFile.delete();
+        }
+        else if(!listSnapshots(folder).isEmpty()){
+            // the server stopped without recording its changes
+            forceFull = true;
+        }
+    }
+
+    public synchronized void recordSave(LootinContainer container){
+        changes.put(container.getContainerID(),new Change(container.getPosition(),false));
+    }
+
+    public synchronized void recordDelete(UUID containerID, StoragePosition position){
+        changes.put(containerID,new Change(position,true));
+    }
+
+    /**
+     * @return number of containers that changed since the last snapshot
+     */
+    public synchronized int getChangeCount(){
+        return changes.size();
+    }
+
+    public boolean isRunning(){
+        return running.get();
+    }
+
+    /**
+     * Saves every changed cached container and writes a snapshot once those saves and every save queued before
+     * them are written, has to be called off the server thread
+     * @param full whether to write every stored container instead of the changed ones
+     * @param callback receives a summary once done, or the reason the snapshot failed
+     * @return false if a snapshot is already being made
+     */
+    public boolean create(boolean full, Consumer<String> callback){
+        if(!running.compareAndSet(false,true)) return false;
+        for(LootinContainer container : plugin.cachedContainers.values()){
+            if(container.isDirty()){
+                StorageConverterUtility.saveAsync(container);
+            }
+        }
+        plugin.getWriteQueue().runAfterQueued(() -> plugin.getScheduler().runTaskAsynchronously(plugin,() -> {
+            try {
+                callback.accept(write(full));
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE,"Could not write a storage snapshot",e);
+                callback.accept("Snapshot failed: "+e.getMessage());
+            } finally {
+                running.set(false);
+            }
+        }));
+        return true;
+    }
+
+    private String write(boolean full) throws IOException {
+        long start = System.currentTimeMillis();
+        List<File> snapshots = listSnapshots(folder);
+        int incrementals = 0;
+        for(int i=snapshots.size()-1;i>=0 && !isFull(snapshots.get(i));i--){
+            incrementals++;
+        }
+        full = full || forceFull || incrementals == snapshots.size() || incrementals+1 >= fullEvery;
+        // saves from now on go to the next snapshot, the ones that happen while this is written may end up in both
+        Map<UUID,Change> taken;
+        synchronized (this){
+            taken = changes;
+            changes = new HashMap<>();
+        }
+        forceFull = false;
+
+        String name = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").format(new Date(start))+(full ? FULL : INCREMENTAL)+EXTENSION;
+        File file = new File(folder,name);
+        File temp = new File(folder,name+".tmp");
+        ContainerTransfer transfer = new ContainerTransfer(plugin,plugin.getStorageBackend());
+        long[] written = new long[1];
+        try {
+            try (BufferedWriter writer = openWriter(temp)) {
+                JsonWriter out = newLineWriter(writer);
+                if(full){
+                    IOException[] failure = new IOException[1];
+                    plugin.getStorageBackend().loadEach(container -> {
+                        if(failure[0] != null) return;
+                        try {
+                            transfer.write(out,container);
+                            writer.newLine();
+                            written[0]++;
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    });
+                    if(failure[0] != null) throw failure[0];
+                }
+                else{
+                    for(Map.Entry<UUID,Change> entry : taken.entrySet()){
+                        LootinContainer container = entry.getValue().deleted ? null : plugin.getStorageBackend().load(entry.getKey(),entry.getValue().position);
+                        if(container == null){
+                            transfer.writeDeleted(out,entry.getKey(),entry.getValue().position);
+                        }
+                        else{
+                            transfer.write(out,container);
+                        }
+                        writer.newLine();
+                        written[0]++;
+                    }
+                }
+            }
+            // a snapshot of the same name is never replaced
+            Files.move(temp.toPath(),file.toPath());
+        } catch (IOException e) {
+            // keep the changes for the next try
+            synchronized (this){
+                taken.forEach(changes::putIfAbsent);
+            }
+            forceFull = forceFull || full;
+            temp.delete();
+            throw e;
+        }
+        prune();
+        return "Wrote "+(full ? "full" : "incremental")+" snapshot "+name+" with "+written[0]+" containers ("+(file.length()/1024)+" KB) in "+(System.currentTimeMillis()-start)+"ms";
+    }
+
+    /**
+     * Deletes the oldest full snapshots and the incremental ones based on them, keeping the configured amount
+     */
+    private void prune(){
+        List<File> snapshots = listSnapshots(folder);
+        int fullSeen = 0;
+        for(int i=snapshots.size()-1;i>=0;i--){
+            File snapshot = snapshots.get(i);
+            if(fullSeen >= keepFull){
+                snapshot.delete();
+            }
+            else if(isFull(snapshot)){
+                fullSeen++;
+            }
+        }
+    }
+
+    /**
+     * Records the changes that were not part of a snapshot yet, called once the writer finished on shutdown
+     */
+    public synchronized void shutdown(){
+        List<String> lines = new ArrayList<>(changes.size());
+        changes.forEach((containerID,change) -> lines.add((change.deleted ? "d " : "c ")+containerID+" "+(change.position != null ? change.position.serialize() : "-")));
+        try {
+            Files.write(getChangesFile(folder).toPath(),lines,StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING,"Could not record the changes since the last snapshot, the next snapshot will be a full one",e);
+        }
+    }
+
+    public List<String> getSnapshotNames(){
+        List<String> names = new ArrayList<>();
+        for(File file : listSnapshots(folder)){
+            names.add(file.getName().substring(0,file.getName().length()-EXTENSION.length()));
+        }
+        return names;
+    }
+
+    /**
+     * Marks given snapshot to be restored on the next start, before any container is loaded
+     * @return false if there is no such snapshot or no full snapshot before it
+     */
+    public boolean scheduleRestore(String name) throws IOException {
+        if(getChain(folder,name) == null) return false;
+        Files.write(getRestoreFile(folder).toPath(),Collections.singletonList(name),StandardCharsets.UTF_8);
+        return true;
+    }
+
+    public void cancelRestore(){
+        getRestoreFile(folder).delete();
+    }
+
+    /**
+     * Restores the snapshot marked by {@link #scheduleRestore(String)}, if there is one. Runs while the plugin
+     * enables so no container is cached or queued yet. Stored containers that did not exist at the time of the
+     * snapshot are deleted, the next snapshot afterwards is a full one.
+     * @return number of restored containers, -1 if no restore was scheduled
+     */
+    public static long restoreScheduled(Lootin plugin, File folder, StorageBackend backend) throws IOException {
+        File restoreFile = getRestoreFile(folder);
+        if(!restoreFile.exists()) return -1;
+        String name = new String(Files.readAllBytes(restoreFile.toPath()),StandardCharsets.UTF_8).trim();
+        List<File> chain = getChain(folder,name);
+        if(chain == null){
+            restoreFile.delete();
+            throw new IOException("Snapshot "+name+" or the full snapshot it builds on is missing");
+        }
+        ContainerTransfer transfer = new ContainerTransfer(plugin,backend);
+        Set<UUID> restored = new HashSet<>();
+        for(File snapshot : chain){
+            List<LootinContainer> batch = new ArrayList<>(RESTORE_BATCH_SIZE);
+            try (BufferedReader in = openReader(snapshot)) {
+                String line;
+                while ((line = in.readLine()) != null){
+                    if(line.trim().isEmpty()) continue;
+                    JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+                    LootinContainer container = transfer.read(json);
+                    if(container == null){
+                        UUID containerID = UUID.fromString(json.get(ID).getAsString());
+                        restored.remove(containerID);
+                        backend.delete(containerID,json.has(WORLD) ? new StoragePosition(json.get(WORLD).getAsString(),json.get(CHUNK_X).getAsInt(),json.get(CHUNK_Z).getAsInt()) : null);
+                        continue;
+                    }
+                    restored.add(container.getContainerID());
+                    batch.add(container);
+                    if(batch.size() == RESTORE_BATCH_SIZE){
+                        backend.saveAll(batch);
+                        batch.clear();
+                    }
+                }
+            }
+            backend.saveAll(batch);
+        }
+        Map<UUID,StoragePosition> newer = new HashMap<>();
+        backend.forEachContainer((containerID,position) -> {
+            if(!restored.contains(containerID)) newer.put(containerID,position);
+        });
+        for(Map.Entry<UUID,StoragePosition> entry : newer.entrySet()){
+            backend.delete(entry.getKey(),entry.getValue());
+        }
+        // whatever was recorded before belongs to the replaced state
+        getChangesFile(folder).delete();
+        restoreFile.delete();
+        return restored.size();
+    }
+
+    /**
+     * @return the full snapshot given snapshot builds on followed by every snapshot up to it, or null if one is missing
+     */
+    private static List<File> getChain(File folder, String name){
+        List<File> snapshots = listSnapshots(folder);
+        int end = -1;
+        for(int i=0;i<snapshots.size();i++){
+            if(snapshots.get(i).getName().equals(name+EXTENSION)) end = i;
+        }
+        if(end == -1) return null;
+        int start = end;
+        while (start >= 0 && !isFull(snapshots.get(start))){
+            start--;
+        }
+        if(start < 0) return null;
+        return new ArrayList<>(snapshots.subList(start,end+1));
+    }
+
+    private static boolean isFull(File snapshot){
+        return snapshot.getName().endsWith(FULL+EXTENSION);
+    }
+
+    private static List<File> listSnapshots(File folder){
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if(files == null) return new ArrayList<>();
+        List<File> snapshots = new ArrayList<>(Arrays.asList(files));
+        // names start with the time they were made
+        snapshots.sort(Comparator.comparing(File::getName));
+        return snapshots;
+    }
+
+    private static File getChangesFile(File folder){
+        return new File(folder,"changes.txt");
+    }
+
+    private static File getRestoreFile(File folder){
+        return new File(folder,"restore.txt");
+    }
+
+    private static class Change {
+        private final StoragePosition position;
+        private final boolean deleted;
+
+        private Change(StoragePosition position, boolean deleted){
+            this.position = position;
+            this.deleted = deleted;
+        }
+    }
+}
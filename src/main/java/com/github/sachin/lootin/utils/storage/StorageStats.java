@@ -0,0 +1,76 @@
+package com.github.sachin.lootin.utils.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for container storage activity since the server started, shown by /lootin stats
+ */
+public class StorageStats {
+
+    private static final AtomicLong loads = new AtomicLong();
+    private static final AtomicLong writes = new AtomicLong();
+    private static final AtomicLong skippedWrites = new AtomicLong();
+    private static final AtomicLong prefetches = new AtomicLong();
+    private static final AtomicLong indexMisses = new AtomicLong();
+    private static final AtomicLong expiredPlayers = new AtomicLong();
+    private static final AtomicLong coalescedLoads = new AtomicLong();
+
+    public static void recordLoad(){
+        loads.incrementAndGet();
+    }
+
+    public static void recordWrite(){
+        writes.incrementAndGet();
+    }
+
+    public static void recordSkippedWrite(){
+        skippedWrites.incrementAndGet();
+    }
+
+    public static void recordPrefetch(){
+        prefetches.incrementAndGet();
+    }
+
+    public static void recordIndexMiss(){
+        indexMisses.incrementAndGet();
+    }
+
+    public static void recordCoalescedLoad(){
+        coalescedLoads.incrementAndGet();
+    }
+
+    public static void recordExpiredPlayers(int count){
+        expiredPlayers.addAndGet(count);
+    }
+
+    public static long getLoads() {
+        return loads.get();
+    }
+
+    public static long getWrites() {
+        return writes.get();
+    }
+
+    public static long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    public static long getPrefetches() {
+        return prefetches.get();
+    }
+
+    public static long getIndexMisses() {
+        return indexMisses.get();
+    }
+
+    /**
+     * @return requests that waited for a read of the same container that was already running instead of reading it again
+     */
+    public static long getCoalescedLoads() {
+        return coalescedLoads.get();
+    }
+
+    public static long getExpiredPlayers() {
+        return expiredPlayers.get();
+    }
+}
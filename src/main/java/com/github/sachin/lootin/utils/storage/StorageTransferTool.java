@@ -0,0 +1,259 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Command line export and import of a SQLITE storage database (lootin.db) while the server is offline.
+ * Works without any server classes, items are copied as the serialized bytes the database already holds.
+ * FILE storage records can only be decoded by a running server, use /lootin export for them.
+ * <p>
+ * Both this tool and /lootin export write one JSON object per line (NDJSON), gzipped if the file name ends in .gz:
+ * <pre>
+ * {"id":uuid, "world":string, "chunkX":int, "chunkZ":int, "blockContainer":bool, "loottable":string,
+ *  "itemFormat":"paper"|"bukkit", "defaultLoot":base64, "players":[{"id":uuid, "lastLootTime":long, "refills":int, "items":base64}]}
+ * </pre>
+ * Items are the bytes of {@link ContainerCodec#encodeItems} for "paper" and an {@link ItemSerializer} string for "bukkit".
+ * Snapshots made by {@link StorageSnapshots} also hold {"id":uuid, "deleted":true} lines for removed containers, imports skip them.
+ */
+public class StorageTransferTool {
+
+    static final String ID = "id";
+    static final String WORLD = "world";
+    static final String CHUNK_X = "chunkX";
+    static final String CHUNK_Z = "chunkZ";
+    static final String BLOCK_CONTAINER = "blockContainer";
+    static final String LOOTTABLE = "loottable";
+    static final String ITEM_FORMAT = "itemFormat";
+    static final String DEFAULT_LOOT = "defaultLoot";
+    static final String PLAYERS = "players";
+    static final String LAST_LOOT_TIME = "lastLootTime";
+    static final String REFILLS = "refills";
+    static final String ITEMS = "items";
+    static final String DELETED = "deleted";
+
+    static final String FORMAT_PAPER = "paper";
+    static final String FORMAT_BUKKIT = "bukkit";
+
+    static BufferedWriter openWriter(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if(file.getName().endsWith(".gz")){
+            out = new GZIPOutputStream(out,65536);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out,StandardCharsets.UTF_8),65536);
+    }
+
+    static BufferedReader openReader(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if(file.getName().endsWith(".gz")){
+            in = new GZIPInputStream(in,65536);
+        }
+        return new BufferedReader(new InputStreamReader(in,StandardCharsets.UTF_8),65536);
+    }
+
+    /**
+     * @return a writer for one JSON object per line, the caller ends every line itself
+     */
+    static JsonWriter newLineWriter(Writer writer){
+        JsonWriter out = new JsonWriter(writer);
+        // lenient so more than one top-level object can be written
+        out.setLenient(true);
+        return out;
+    }
+
+    /**
+     * Prints how many containers were handled so far and at what rate, at most every few seconds
+     */
+    static class Progress {
+        private final String action;
+        private final long start = System.currentTimeMillis();
+        private long lastReport = start;
+        private long count;
+
+        Progress(String action){
+            this.action = action;
+        }
+
+        /**
+         * @return a progress line if one is due
+         */
+        String increment(){
+            count++;
+            long now = System.currentTimeMillis();
+            if(now-lastReport < 5000) return null;
+            lastReport = now;
+            return summary();
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        String summary(){
+            long millis = Math.max(1,System.currentTimeMillis()-start);
+            return action+" "+count+" containers in "+(millis/1000)+"s ("+(count*1000/millis)+" containers/s)";
+        }
+    }
+
+    public static long exportDatabase(File database, File file) throws IOException, SQLException {
+        Progress progress = new Progress("Exported");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:"+database.getAbsolutePath());
+             Statement containers = connection.createStatement();
+             PreparedStatement players = connection.prepareStatement("SELECT player_id, last_loot_time, refills, items FROM lootin_player_loot WHERE container_id = ?");
+             BufferedWriter writer = openWriter(file)) {
+            JsonWriter out = newLineWriter(writer);
+            Base64.Encoder base64 = Base64.getEncoder();
+            try (ResultSet result = containers.executeQuery("SELECT container_id, world, chunk_x, chunk_z, loottable, default_loot, block_container FROM lootin_containers")) {
+                while (result.next()){
+                    byte[] containerID = result.getBytes(1);
+                    out.beginObject();
+                    out.name(ID).value(fromBytes(containerID).toString());
+                    if(result.getString(2) != null){
+                        out.name(WORLD).value(result.getString(2));
+                        out.name(CHUNK_X).value(result.getInt(3));
+                        out.name(CHUNK_Z).value(result.getInt(4));
+                    }
+                    out.name(BLOCK_CONTAINER).value(result.getInt(7) != 0);
+                    if(result.getString(5) != null){
+                        out.name(LOOTTABLE).value(result.getString(5));
+                    }
+                    out.name(ITEM_FORMAT).value(FORMAT_PAPER);
+                    if(result.getBytes(6) != null){
+                        out.name(DEFAULT_LOOT).value(base64.encodeToString(result.getBytes(6)));
+                    }
+                    out.name(PLAYERS).beginArray();
+                    players.setBytes(1,containerID);
+                    try (ResultSet playerResult = players.executeQuery()) {
+                        while (playerResult.next()){
+                            out.beginObject();
+                            out.name(ID).value(fromBytes(playerResult.getBytes(1)).toString());
+                            out.name(LAST_LOOT_TIME).value(playerResult.getLong(2));
+                            out.name(REFILLS).value(playerResult.getInt(3));
+                            if(playerResult.getBytes(4) != null){
+                                out.name(ITEMS).value(base64.encodeToString(playerResult.getBytes(4)));
+                            }
+                            out.endObject();
+                        }
+                    }
+                    out.endArray();
+                    out.endObject();
+                    out.flush();
+                    writer.newLine();
+                    String line = progress.increment();
+                    if(line != null) System.out.println(line);
+                }
+            }
+        }
+        System.out.println(progress.summary());
+        return progress.getCount();
+    }
+
+    public static long importDatabase(File file, File database) throws IOException, SQLException {
+        Progress progress = new Progress("Imported");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:"+database.getAbsolutePath());
+             BufferedReader in = openReader(file)) {
+            try (Statement statement = connection.createStatement()) {
+                // same schema as SqliteStorageBackend creates
+                statement.execute("CREATE TABLE IF NOT EXISTS lootin_containers (container_id BLOB PRIMARY KEY, world TEXT, chunk_x INTEGER, chunk_z INTEGER, " +
+                        "loottable TEXT, default_loot BLOB, block_container INTEGER NOT NULL DEFAULT 0)");
+                statement.execute("CREATE TABLE IF NOT EXISTS lootin_player_loot (container_id BLOB NOT NULL, player_id BLOB NOT NULL, " +
+                        "last_loot_time INTEGER NOT NULL, refills INTEGER NOT NULL, items BLOB, PRIMARY KEY (container_id, player_id))");
+            }
+            connection.setAutoCommit(false);
+            try (PreparedStatement upsertContainer = connection.prepareStatement(
+                         "INSERT OR REPLACE INTO lootin_containers (container_id, world, chunk_x, chunk_z, loottable, default_loot, block_container) VALUES (?,?,?,?,?,?,?)");
+                 PreparedStatement deletePlayers = connection.prepareStatement("DELETE FROM lootin_player_loot WHERE container_id = ?");
+                 PreparedStatement insertPlayer = connection.prepareStatement(
+                         "INSERT INTO lootin_player_loot (container_id, player_id, last_loot_time, refills, items) VALUES (?,?,?,?,?)")) {
+                Base64.Decoder base64 = Base64.getDecoder();
+                String line;
+                while ((line = in.readLine()) != null){
+                    if(line.trim().isEmpty()) continue;
+                    JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+                    if(json.has(DELETED)) continue;
+                    if(!FORMAT_PAPER.equals(json.get(ITEM_FORMAT).getAsString())){
+                        throw new IOException("Only exports made on PaperMC can be imported into SQLITE storage");
+                    }
+                    byte[] containerID = toBytes(UUID.fromString(json.get(ID).getAsString()));
+                    upsertContainer.setBytes(1,containerID);
+                    upsertContainer.setString(2,json.has(WORLD) ? json.get(WORLD).getAsString() : null);
+                    upsertContainer.setInt(3,json.has(CHUNK_X) ? json.get(CHUNK_X).getAsInt() : 0);
+                    upsertContainer.setInt(4,json.has(CHUNK_Z) ? json.get(CHUNK_Z).getAsInt() : 0);
+                    upsertContainer.setString(5,json.has(LOOTTABLE) ? json.get(LOOTTABLE).getAsString() : null);
+                    upsertContainer.setBytes(6,json.has(DEFAULT_LOOT) ? base64.decode(json.get(DEFAULT_LOOT).getAsString()) : null);
+                    upsertContainer.setInt(7,json.has(BLOCK_CONTAINER) && json.get(BLOCK_CONTAINER).getAsBoolean() ? 1 : 0);
+                    upsertContainer.addBatch();
+                    deletePlayers.setBytes(1,containerID);
+                    deletePlayers.addBatch();
+                    for(JsonElement element : json.has(PLAYERS) ? json.getAsJsonArray(PLAYERS) : new JsonArray()){
+                        JsonObject player = element.getAsJsonObject();
+                        insertPlayer.setBytes(1,containerID);
+                        insertPlayer.setBytes(2,toBytes(UUID.fromString(player.get(ID).getAsString())));
+                        insertPlayer.setLong(3,player.get(LAST_LOOT_TIME).getAsLong());
+                        insertPlayer.setInt(4,player.get(REFILLS).getAsInt());
+                        insertPlayer.setBytes(5,player.has(ITEMS) ? base64.decode(player.get(ITEMS).getAsString()) : null);
+                        insertPlayer.addBatch();
+                    }
+                    String report = progress.increment();
+                    if(progress.getCount() % 512 == 0 || report != null){
+                        upsertContainer.executeBatch();
+                        deletePlayers.executeBatch();
+                        insertPlayer.executeBatch();
+                        connection.commit();
+                    }
+                    if(report != null) System.out.println(report);
+                }
+                upsertContainer.executeBatch();
+                deletePlayers.executeBatch();
+                insertPlayer.executeBatch();
+                connection.commit();
+            }
+        }
+        System.out.println(progress.summary());
+        return progress.getCount();
+    }
+
+    private static byte[] toBytes(UUID uuid){
+        return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+    }
+
+    private static UUID fromBytes(byte[] bytes){
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(),buffer.getLong());
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || !(args[0].equalsIgnoreCase("export") || args[0].equalsIgnoreCase("import"))) {
+            System.out.println("Usage: StorageTransferTool export <lootin.db> <output.ndjson[.gz]>");
+            System.out.println("       StorageTransferTool import <input.ndjson[.gz]> <lootin.db>");
+            System.out.println("The sqlite-jdbc and gson jars have to be on the classpath, the server must not be running");
+            return;
+        }
+
+        try {
+            Class.forName("org.sqlite.JDBC");
+            if (args[0].equalsIgnoreCase("export")) {
+                exportDatabase(new File(args[1]), new File(args[2]));
+            } else {
+                importDatabase(new File(args[1]), new File(args[2]));
+            }
+        } catch (ClassNotFoundException e) {
+            System.err.println("sqlite-jdbc is not on the classpath");
+        } catch (IOException | SQLException e) {
+            System.err.println("Transfer failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
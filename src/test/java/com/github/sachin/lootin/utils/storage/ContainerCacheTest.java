@@ -0,0 +1,105 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContainerCacheTest {
+
+    private final List<LootinContainer> removed = new ArrayList<>();
+
+    @Test
+    void keepsFrequentContainersDuringScan(){
+        ContainerCache cache = new ContainerCache(100,Long.MAX_VALUE/4,removed::add);
+        List<UUID> hot = fill(cache,99);
+        // the newest container sits in the window, only the ones that made it to the main space are compared
+        List<UUID> cold = fill(cache,1);
+        for(int i=0;i<3;i++){
+            for(UUID id : hot){
+                assertNotNull(cache.get(id));
+            }
+        }
+        // containers opened once must not push out the ones that keep being used
+        cold.addAll(fill(cache,1000));
+        for(UUID id : hot){
+            assertTrue(cache.containsKey(id));
+        }
+        assertEquals(1000,removed.size());
+        assertTrue(removed.stream().allMatch(container -> cold.contains(container.getContainerID())));
+        assertTrue(cache.getWeight() <= cache.getMaxWeight());
+    }
+
+    @Test
+    void admitsCandidateUsedMoreOftenThanVictim(){
+        ContainerCache cache = new ContainerCache(100,Long.MAX_VALUE/4,removed::add);
+        fill(cache,100);
+        UUID wanted = UUID.randomUUID();
+        UUID unwanted = UUID.randomUUID();
+        for(int i=0;i<5;i++){
+            // misses count towards the frequency as well
+            assertNull(cache.get(wanted));
+        }
+        cache.put(wanted,new LootinContainer(wanted));
+        cache.put(unwanted,new LootinContainer(unwanted));
+        fill(cache,1);
+
+        assertTrue(cache.containsKey(wanted));
+        assertFalse(cache.containsKey(unwanted));
+        assertEquals(100,cache.size());
+    }
+
+    @Test
+    void expiresThroughCoarserLevels(){
+        // far enough out to start on the second level of the wheel
+        long expireAfter = 10000;
+        ContainerCache cache = new ContainerCache(100,expireAfter,removed::add);
+        UUID id = fill(cache,1).get(0);
+        long time = 0;
+        while (removed.isEmpty() && time < 2*expireAfter){
+            cache.expire(50);
+            time += 50;
+        }
+        assertEquals(1,removed.size());
+        assertEquals(1,cache.getExpirationCount());
+        assertFalse(cache.containsKey(id));
+        assertTrue(time >= expireAfter && time < expireAfter+2*64,"expired after "+time+" ticks");
+    }
+
+    @Test
+    void useMovesDeadline(){
+        ContainerCache cache = new ContainerCache(100,1000,removed::add);
+        UUID used = fill(cache,1).get(0);
+        UUID unused = fill(cache,1).get(0);
+        cache.expire(900);
+        assertNotNull(cache.get(used));
+        assertEquals(1,cache.expire(200));
+        assertFalse(cache.containsKey(unused));
+        assertTrue(cache.containsKey(used));
+        assertEquals(0,cache.expire(600));
+        assertEquals(1,cache.expire(300));
+        assertEquals(0,cache.size());
+    }
+
+    @Test
+    void expiresEverythingAfterLongPause(){
+        ContainerCache cache = new ContainerCache(100,1000,removed::add);
+        fill(cache,50);
+        assertEquals(50,cache.expire(10000000));
+        assertEquals(0,cache.size());
+        assertEquals(0,cache.getWeight());
+    }
+
+    private static List<UUID> fill(ContainerCache cache, int count){
+        List<UUID> ids = new ArrayList<>();
+        for(int i=0;i<count;i++){
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            cache.put(id,new LootinContainer(id));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+
+class ContainerCodecTest {
+
+    private MockedStatic<ItemStack> itemStacks;
+
+    @BeforeEach
+    void setUp(){
+        itemStacks = mockStatic(ItemStack.class);
+        itemStacks.when(() -> ItemStack.deserializeBytes(any())).thenAnswer(invocation -> TestItem.deserialize(invocation.getArgument(0)));
+    }
+
+    @AfterEach
+    void tearDown(){
+        itemStacks.close();
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        LootinContainer container = new LootinContainer(UUID.randomUUID(),"minecraft:chests/simple_dungeon",
+                Arrays.asList(new TestItem("diamond",3),null,new TestItem("bread",5),new TestItem("bone",2)));
+        UUID lootedID = UUID.randomUUID();
+        container.getPlayerDataMap().put(lootedID,new PlayerLootData(lootedID,
+                Arrays.asList(null,null,new TestItem("bread",1),new TestItem("bone",2)),1700000000000L,2));
+        UUID otherID = UUID.randomUUID();
+        container.getPlayerDataMap().put(otherID,new PlayerLootData(otherID,
+                Arrays.asList(new TestItem("emerald",1),new TestItem("string",4),null,new TestItem("arrow",16)),42L,0));
+
+        byte[] record = ContainerCodec.encode(container);
+        assertTrue(ContainerCodec.isBinary(record));
+        LootinContainer decoded = new LootinContainer(container.getContainerID());
+        ContainerCodec.decode(record,decoded);
+
+        assertEquals(container.getLoottable(),decoded.getLoottable());
+        assertEquals(container.getDefaultLoot(),decoded.getDefaultLoot());
+        assertEquals(2,decoded.getPlayerDataMap().size());
+        for(PlayerLootData playerData : container.getPlayerDataMap().values()){
+            PlayerLootData decodedData = decoded.getPlayerDataMap().get(playerData.getPlayerID());
+            assertEquals(playerData.getItems(),decodedData.getItems());
+            assertEquals(playerData.getLastLootTime(),decodedData.getLastLootTime());
+            assertEquals(playerData.getRefills(),decodedData.getRefills());
+        }
+    }
+
+    @Test
+    void decodesFromReusedBuffer() throws IOException {
+        LootinContainer container = new LootinContainer(UUID.randomUUID(),null,Arrays.asList(new TestItem("apple",1)));
+        byte[] record = ContainerCodec.encode(container);
+        byte[] buffer = Arrays.copyOf(record,record.length+64);
+        Arrays.fill(buffer,record.length,buffer.length,(byte) 0x7f);
+
+        LootinContainer decoded = new LootinContainer(container.getContainerID());
+        ContainerCodec.decode(buffer,record.length,decoded);
+        assertNull(decoded.getLoottable());
+        assertEquals(container.getDefaultLoot(),decoded.getDefaultLoot());
+    }
+
+    @Test
+    void storesEqualStacksOnce() throws IOException {
+        List<ItemStack> loot = new ArrayList<>();
+        for(int i=0;i<27;i++){
+            loot.add(new TestItem("cobblestone",64));
+        }
+        LootinContainer container = new LootinContainer(UUID.randomUUID(),null,loot);
+        for(int i=0;i<10;i++){
+            UUID playerID = UUID.randomUUID();
+            container.getPlayerDataMap().put(playerID,new PlayerLootData(playerID,LootinContainer.copyItems(loot),0,0));
+        }
+
+        ContainerCodec.decode(ContainerCodec.encode(container),new LootinContainer(container.getContainerID()));
+        itemStacks.verify(() -> ItemStack.deserializeBytes(any()),times(1));
+    }
+
+    @Test
+    void storesPlayerAsDeltaOfDefaultLoot() throws IOException {
+        List<ItemStack> loot = new ArrayList<>();
+        for(int i=0;i<27;i++){
+            loot.add(new TestItem("item"+i,10));
+        }
+        LootinContainer container = new LootinContainer(UUID.randomUUID(),null,loot);
+        int withoutPlayer = ContainerCodec.encode(container).length;
+        List<ItemStack> items = LootinContainer.copyItems(loot);
+        items.get(3).setAmount(4);
+        items.set(5,null);
+        UUID playerID = UUID.randomUUID();
+        container.getPlayerDataMap().put(playerID,new PlayerLootData(playerID,items,0,0));
+
+        byte[] record = ContainerCodec.encode(container);
+        // 16 bytes of player id, one each for loot time and refills, a full slot list alone would take 28
+        assertTrue(record.length-withoutPlayer < 18+28,"player took "+(record.length-withoutPlayer)+" bytes");
+
+        LootinContainer decoded = new LootinContainer(container.getContainerID());
+        ContainerCodec.decode(record,decoded);
+        List<ItemStack> decodedItems = decoded.getPlayerDataMap().get(playerID).getItems();
+        assertEquals(items,decodedItems);
+        // player items are copies, changing them leaves the default loot alone
+        decodedItems.get(0).setAmount(1);
+        assertEquals(10,decoded.getDefaultLoot().get(0).getAmount());
+    }
+
+    @Test
+    void rejectsNewerVersion() throws IOException {
+        byte[] record = ContainerCodec.encode(new LootinContainer(UUID.randomUUID(),null,new ArrayList<>()));
+        record[2] = (byte) (ContainerCodec.VERSION+1);
+        assertThrows(IOException.class,() -> ContainerCodec.decode(record,new LootinContainer(UUID.randomUUID())));
+    }
+}
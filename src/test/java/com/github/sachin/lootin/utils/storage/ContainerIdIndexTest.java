@@ -0,0 +1,63 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContainerIdIndexTest {
+
+    @Test
+    void reportsEverythingUntilReady(){
+        ContainerIdIndex index = new ContainerIdIndex();
+        assertTrue(index.mightContain(UUID.randomUUID()));
+        index.setReady();
+        assertFalse(index.mightContain(UUID.randomUUID()));
+    }
+
+    @Test
+    void growsPastInitialTable(){
+        ContainerIdIndex index = new ContainerIdIndex();
+        List<UUID> ids = new ArrayList<>();
+        for(int i=0;i<10000;i++){
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            index.add(id);
+        }
+        index.add(ids.get(0));
+        assertEquals(ids.size(),index.size());
+        for(UUID id : ids){
+            assertTrue(index.contains(id));
+        }
+        assertFalse(index.contains(UUID.randomUUID()));
+    }
+
+    @Test
+    void removeKeepsProbeChainIntact(){
+        ContainerIdIndex index = new ContainerIdIndex();
+        // equal halves hash to the same slot, so all of these share one probe chain
+        List<UUID> ids = new ArrayList<>();
+        for(int i=1;i<=50;i++){
+            UUID id = new UUID(i,i);
+            ids.add(id);
+            index.add(id);
+        }
+        for(int i=0;i<ids.size();i+=3){
+            index.remove(ids.get(i));
+        }
+        for(int i=0;i<ids.size();i++){
+            assertEquals(i % 3 != 0,index.contains(ids.get(i)),"id "+i);
+        }
+        assertEquals(33,index.size());
+    }
+
+    @Test
+    void ignoresZeroID(){
+        ContainerIdIndex index = new ContainerIdIndex();
+        index.add(new UUID(0,0));
+        assertEquals(0,index.size());
+    }
+}
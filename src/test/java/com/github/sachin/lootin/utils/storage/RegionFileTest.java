@@ -0,0 +1,103 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegionFileTest {
+
+    @TempDir
+    File folder;
+
+    @Test
+    void keepsRecordsAcrossReopen() throws IOException {
+        File file = new File(folder,"r.0.0.ltr");
+        UUID chestID = UUID.randomUUID();
+        UUID minecartID = UUID.randomUUID();
+        RegionFile region = new RegionFile(file);
+        assertTrue(region.write(chestID,33,RegionFile.FLAG_BLOCK_CONTAINER,record(700,1)));
+        assertTrue(region.write(minecartID,33,(short) 0,record(20,2)));
+        region.close();
+
+        region = new RegionFile(file);
+        assertArrayEquals(record(700,1),region.read(chestID));
+        assertArrayEquals(record(20,2),region.read(minecartID));
+        assertEquals(RegionFile.FLAG_BLOCK_CONTAINER,region.getFlags(chestID));
+        assertEquals(Collections.singleton(chestID),region.getContainerIDs(33,RegionFile.FLAG_BLOCK_CONTAINER));
+        assertEquals(2,region.getContainerIDs(33,(short) 0).size());
+        assertEquals(33,region.getLocalChunks().get(minecartID));
+        byte[] mapped = region.read(chestID,(record, flags) -> {
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            return bytes;
+        });
+        assertArrayEquals(record(700,1),mapped);
+        region.close();
+    }
+
+    @Test
+    void reusesReplacedSectorsOnlyAfterSync() throws IOException {
+        File file = new File(folder,"r.0.0.ltr");
+        UUID id = UUID.randomUUID();
+        RegionFile region = new RegionFile(file);
+        region.write(id,0,(short) 0,record(1000,1));
+        long length = file.length();
+
+        // the previous version stays intact until the overwrite is synced
+        region.write(id,0,(short) 0,record(1000,2));
+        assertEquals(length+2*RegionFile.SECTOR_BYTES,file.length());
+        assertArrayEquals(record(1000,2),region.read(id));
+
+        region.sync();
+        region.write(UUID.randomUUID(),0,(short) 0,record(1000,3));
+        assertEquals(length+2*RegionFile.SECTOR_BYTES,file.length());
+        assertArrayEquals(record(1000,2),region.read(id));
+        region.close();
+    }
+
+    @Test
+    void deleteFreesSectorsAfterSync() throws IOException {
+        File file = new File(folder,"r.0.0.ltr");
+        UUID id = UUID.randomUUID();
+        RegionFile region = new RegionFile(file);
+        region.write(id,0,(short) 0,record(600,1));
+        long length = file.length();
+        assertEquals(2*RegionFile.SECTOR_BYTES,region.delete(id));
+        assertNull(region.read(id));
+
+        region.write(UUID.randomUUID(),0,(short) 0,record(600,2));
+        assertEquals(length+2*RegionFile.SECTOR_BYTES,file.length());
+        region.sync();
+        region.write(UUID.randomUUID(),0,(short) 0,record(600,3));
+        assertEquals(length+2*RegionFile.SECTOR_BYTES,file.length());
+        region.close();
+
+        region = new RegionFile(file);
+        assertFalse(region.contains(id));
+        assertEquals(2,region.size());
+        region.close();
+    }
+
+    @Test
+    void refusesRecordsOnceTableIsFull() throws IOException {
+        RegionFile region = new RegionFile(new File(folder,"r.0.0.ltr"));
+        for(int i=0;i<RegionFile.MAX_ENTRIES;i++){
+            assertTrue(region.write(UUID.randomUUID(),i,(short) 0,record(1,i)));
+        }
+        assertFalse(region.write(UUID.randomUUID(),0,(short) 0,record(1,0)));
+        region.close();
+    }
+
+    private static byte[] record(int length, int fill){
+        byte[] data = new byte[length];
+        Arrays.fill(data,(byte) fill);
+        return data;
+    }
+}
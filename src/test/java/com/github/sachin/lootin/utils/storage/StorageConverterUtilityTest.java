@@ -0,0 +1,80 @@
+package com.github.sachin.lootin.utils.storage;
+
+import com.github.sachin.lootin.Lootin;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.MockedStatic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class StorageConverterUtilityTest {
+
+    private static Lootin plugin;
+
+    @TempDir
+    File folder;
+
+    private SqliteStorageBackend backend;
+
+    @BeforeAll
+    static void setUpPlugin() throws ClassNotFoundException {
+        plugin = mock(Lootin.class);
+        // StorageConverterUtility looks the plugin up once, when it is loaded
+        try (MockedStatic<Lootin> lootin = mockStatic(Lootin.class)) {
+            lootin.when(Lootin::getPlugin).thenReturn(plugin);
+            Class.forName(StorageConverterUtility.class.getName());
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        backend = new SqliteStorageBackend(new File(folder,"lootin.db"));
+        ContainerWriteQueue writeQueue = mock(ContainerWriteQueue.class);
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(writeQueue).runAfterQueued(any());
+        reset(plugin);
+        plugin.cachedContainers = new ContainerCache(1000,6000,container -> {});
+        when(plugin.getStorageBackend()).thenReturn(backend);
+        when(plugin.getWriteQueue()).thenReturn(writeQueue);
+    }
+
+    @AfterEach
+    void tearDown(){
+        backend.close();
+    }
+
+    @Test
+    void forgetPlayerRemovesStoredPlayer() throws IOException {
+        UUID containerID = UUID.randomUUID();
+        StoragePosition position = new StoragePosition("world",3,-7);
+        UUID forgotten = UUID.randomUUID();
+        UUID kept = UUID.randomUUID();
+        LootinContainer container = new LootinContainer(containerID);
+        container.setPosition(position);
+        container.getPlayerDataMap().put(forgotten,new PlayerLootData(forgotten,null,100,1));
+        container.getPlayerDataMap().put(kept,new PlayerLootData(kept,null,200,0));
+        container.markDirty();
+        backend.save(container);
+
+        AtomicInteger removed = new AtomicInteger(-1);
+        StorageConverterUtility.forgetPlayer(forgotten,removed::set);
+
+        assertEquals(1,removed.get());
+        LootinContainer stored = backend.load(containerID,position);
+        assertFalse(stored.getPlayerDataMap().containsKey(forgotten));
+        assertTrue(stored.getPlayerDataMap().containsKey(kept));
+        assertTrue(backend.getLootedContainers(forgotten).isEmpty());
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.sachin.lootin.utils.storage;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Item stack that works without a server, it serializes to its name and amount
+ */
+class TestItem extends ItemStack {
+
+    private final String name;
+    private int amount;
+
+    TestItem(String name, int amount){
+        this.name = name;
+        this.amount = amount;
+    }
+
+    static ItemStack deserialize(byte[] bytes){
+        String[] parts = new String(bytes,StandardCharsets.UTF_8).split("x");
+        return new TestItem(parts[0],Integer.parseInt(parts[1]));
+    }
+
+    @Override
+    public byte[] serializeAsBytes(){
+        return (name+"x"+amount).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Material getType(){
+        return Material.STONE;
+    }
+
+    @Override
+    public int getAmount(){
+        return amount;
+    }
+
+    @Override
+    public void setAmount(int amount){
+        this.amount = amount;
+    }
+
+    @Override
+    public boolean isSimilar(ItemStack other){
+        return other instanceof TestItem && ((TestItem) other).name.equals(name);
+    }
+
+    @Override
+    public TestItem clone(){
+        return new TestItem(name,amount);
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o) return true;
+        if(!(o instanceof TestItem)) return false;
+        TestItem item = (TestItem) o;
+        return amount == item.amount && name.equals(item.name);
+    }
+
+    @Override
+    public int hashCode(){
+        return Objects.hash(name,amount);
+    }
+
+    @Override
+    public String toString(){
+        return name+"x"+amount;
+    }
+}